@@ -25,41 +25,141 @@
 package com.github.oowekyala.ooxml.messages;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 import com.github.oowekyala.ooxml.messages.Annots.Nullable;
 
 /**
  * Accumulates messages and does not display them until the
- * reporter is closed.
+ * reporter is closed. Messages are grouped by severity, then by
+ * {@linkplain #groupingKey(XmlException) message template}, in the order
+ * they were first reported. This is not thread-safe, see
+ * {@link ConcurrentAccumulatingMessageHandler}.
+ *
+ * <p>By default all messages are kept. To bound memory, the handler
+ * may be created with a retention policy: for each message, the first
+ * few exemplars are kept, then a uniform sample of the remaining ones
+ * (reservoir sampling), and the others are only counted.
  */
 public abstract class AccumulatingMessageHandler implements XmlMessageHandler, AutoCloseable {
 
-    private final EnumMap<XmlSeverity, Map<String, List<XmlException>>> entries = new EnumMap<>(XmlSeverity.class);
+    private final EnumMap<XmlSeverity, Map<String, Group>> entries = new EnumMap<>(XmlSeverity.class);
     protected final XmlSeverity minSeverity;
     protected final XmlMessageHandler basePrinter;
+    private final int numExemplars;
+    private final int sampleSize;
 
 
     public AccumulatingMessageHandler(XmlMessageHandler basePrinter, XmlSeverity minSeverity) {
+        this(basePrinter, minSeverity, Integer.MAX_VALUE, 0);
+    }
+
+
+    /**
+     * Create a handler that retains at most {@code numExemplars + sampleSize}
+     * entries per message.
+     *
+     * @param numExemplars Number of entries that are kept for each message,
+     *                     in the order they are reported
+     * @param sampleSize   Number of entries that are sampled among the
+     *                     entries reported after the exemplars
+     *
+     * @throws IllegalArgumentException If a number is negative, or both are zero
+     */
+    public AccumulatingMessageHandler(XmlMessageHandler basePrinter, XmlSeverity minSeverity, int numExemplars, int sampleSize) {
+        if (numExemplars < 0 || sampleSize < 0 || numExemplars == 0 && sampleSize == 0) {
+            throw new IllegalArgumentException("Invalid retention: " + numExemplars + ", " + sampleSize);
+        }
         this.basePrinter = basePrinter;
         this.minSeverity = minSeverity;
+        this.numExemplars = numExemplars;
+        this.sampleSize = sampleSize;
+    }
+
+
+    /**
+     * Delegates to the {@link #basePrinter}, which handles the messages in the end.
+     */
+    @Override
+    public boolean isEnabled(XmlSeverity severity, @Nullable String kind) {
+        return basePrinter.isEnabled(severity, kind);
     }
 
 
     @Override
     public void accept(XmlException ex) {
-        entries.computeIfAbsent(ex.getSeverity(), s -> new HashMap<>())
-               .computeIfAbsent(ex.getSimpleMessage(), m -> new ArrayList<>())
-               .add(ex);
+        retain(group(ex.getSeverity(), groupingKey(ex)), ex);
     }
 
+
+    private Group group(XmlSeverity severity, String key) {
+        return entries.computeIfAbsent(severity, s -> new LinkedHashMap<>())
+                      .computeIfAbsent(key, m -> new Group());
+    }
+
+
+    /** Adds an entry to the group, following the retention policy of this handler. */
+    void retain(Group group, XmlException ex) {
+        group.add(ex, numExemplars, sampleSize);
+    }
+
+
+    /**
+     * Adds an entry to the group, following the retention policy of this
+     * handler, except that the exemplars are the first entries in the given
+     * order, instead of the first ones reported.
+     */
+    void retain(Group group, XmlException ex, Comparator<XmlException> order) {
+        group.addInOrder(ex, numExemplars, sampleSize, order);
+    }
+
+
+    /**
+     * Counts entries that were reported with the given severity and
+     * grouping key, but were not retained.
+     */
+    void addNotRetained(XmlSeverity severity, String key, int count) {
+        if (count > 0) {
+            group(severity, key).count += count;
+        }
+    }
+
+    /**
+     * Returns the key by which entries are grouped. The default is the
+     * simple message of the entry, where quoted values and numbers are
+     * replaced with placeholders, so that eg {@code 'abc' is not a valid value for 'integer'}
+     * and {@code '12.5' is not a valid value for 'integer'} are in the same group.
+     * Templates are cached, so this is cheap for repeated messages.
+     *
+     * @param ex An entry
+     */
+    protected String groupingKey(XmlException ex) {
+        return MessageUtil.messageTemplate(ex.getSimpleMessage());
+    }
+
+
     protected abstract void printSummaryLine(String kind, XmlSeverity severity, String message);
 
 
+    /**
+     * Returns the number of entries that were reported with the given
+     * severity and grouping key. This may be more than the number of entries
+     * that were retained.
+     */
+    protected int getCount(XmlSeverity severity, String message) {
+        Map<String, Group> groups = entries.get(severity);
+        Group group = groups == null ? null : groups.get(message);
+        return group == null ? 0 : group.count;
+    }
+
+
     public void close() {
         close(minSeverity, minSeverity);
     }
@@ -71,14 +171,17 @@ public abstract class AccumulatingMessageHandler implements XmlMessageHandler, A
      * the {@link #basePrinter}, they are dispatched to the methods
      * {@link #dontPrint(XmlSeverity, Map)}, {@link #printFully(XmlSeverity, String, List)}
      * and {@link #printSummary(XmlSeverity, String, List)}.
+     * These receive the retained entries.
      */
     public void close(XmlSeverity minSeverityToPrintSummary, XmlSeverity minSeverityToPrintFully) {
-        entries.forEach(((severity, entriesByMessage) -> {
+        entries.forEach(((severity, groups) -> {
             if (severity.compareTo(minSeverityToPrintFully) >= 0) {
-                entriesByMessage.forEach((message, entry) -> printFully(severity, message, entry));
+                groups.forEach((message, group) -> printFully(severity, message, group.retained));
             } else if (severity.compareTo(minSeverityToPrintSummary) >= 0) {
-                entriesByMessage.forEach((message, entry) -> printSummary(severity, message, entry));
+                groups.forEach((message, group) -> printSummary(severity, message, group.retained));
             } else {
+                Map<String, List<XmlException>> entriesByMessage = new LinkedHashMap<>();
+                groups.forEach((message, group) -> entriesByMessage.put(message, group.retained));
                 dontPrint(severity, entriesByMessage);
             }
         }));
@@ -86,17 +189,26 @@ public abstract class AccumulatingMessageHandler implements XmlMessageHandler, A
 
 
     /**
-     * Print "fully", the default prints all entries. This is
-     * so that previous errors are not forgotten.
+     * Print "fully", the default prints all retained entries. This is
+     * so that previous errors are not forgotten. If some entries were
+     * not retained, a summary line says how many.
      *
      * @param severity severity of the message
-     * @param message  Message with which the entry was reported
+     * @param message  Grouping key of the entries
      * @param entry    A nonempty list
      */
     protected void printFully(XmlSeverity severity, String message, List<XmlException> entry) {
         for (XmlException e : entry) {
             basePrinter.accept(e);
         }
+        int numDropped = getCount(severity, message) - entry.size();
+        if (numDropped > 0) {
+            printSummaryLine(entry.get(0).getKind(),
+                             severity,
+                             "There were " + numDropped + " more "
+                                 + severity.toString().toLowerCase(Locale.ROOT)
+                                 + " like the previous ones");
+        }
     }
 
 
@@ -104,16 +216,17 @@ public abstract class AccumulatingMessageHandler implements XmlMessageHandler, A
      * Print a summary line, not every one of the entries.
      *
      * @param severity severity of the message
-     * @param message  Message with which the entry was reported
+     * @param message  Grouping key of the entries
      * @param entry    A nonempty list
      */
     protected void printSummary(XmlSeverity severity, String message, List<XmlException> entry) {
         XmlException first = entry.get(0);
-        if (entry.size() > 1) {
+        int count = getCount(severity, message);
+        if (count > 1) {
             String kind = first.getKind();
             printSummaryLine(kind,
                              severity,
-                             "There were " + entry.size() + " "
+                             "There were " + count + " "
                                  + severity.toString().toLowerCase(Locale.ROOT)
                                  + " like the following one:");
         }
@@ -125,12 +238,73 @@ public abstract class AccumulatingMessageHandler implements XmlMessageHandler, A
      * Handle ignored messages.
      *
      * @param severity         Severity
-     * @param entriesByMessage Entries for the given severity,
-     *                         indexed by their message
+     * @param entriesByMessage Retained entries for the given severity,
+     *                         indexed by their grouping key
      */
     protected void dontPrint(XmlSeverity severity, Map<String, List<XmlException>> entriesByMessage) {
         // do nothing by default
     }
 
 
+    /** Entries retained for one message. */
+    static final class Group {
+
+        final List<XmlException> retained = new ArrayList<>(1);
+        int count;
+
+
+        void add(XmlException ex, int numExemplars, int sampleSize) {
+            count++;
+            if (count <= numExemplars) {
+                retained.add(ex);
+                return;
+            }
+            sample(ex, numExemplars, sampleSize);
+        }
+
+
+        /** Like {@link #add}, but the exemplars are kept sorted, and are the first ones in the order. */
+        void addInOrder(XmlException ex, int numExemplars, int sampleSize, Comparator<XmlException> order) {
+            count++;
+            if (numExemplars == Integer.MAX_VALUE) {
+                // all are kept
+                retained.add(ex);
+                return;
+            }
+            if (numExemplars > 0) {
+                if (count <= numExemplars) {
+                    insertSorted(ex, retained.size(), order);
+                    return;
+                }
+                XmlException last = retained.get(numExemplars - 1);
+                if (order.compare(ex, last) < 0) {
+                    // the evicted exemplar is sampled instead
+                    retained.remove(numExemplars - 1);
+                    insertSorted(ex, numExemplars - 1, order);
+                    ex = last;
+                }
+            }
+            sample(ex, numExemplars, sampleSize);
+        }
+
+
+        private void insertSorted(XmlException ex, int numSorted, Comparator<XmlException> order) {
+            int idx = Collections.binarySearch(retained.subList(0, numSorted), ex, order);
+            retained.add(idx < 0 ? -idx - 1 : idx + 1, ex);
+        }
+
+
+        /** Reservoir sampling of the entries after the exemplars, algorithm R. */
+        private void sample(XmlException ex, int numExemplars, int sampleSize) {
+            int seen = count - numExemplars;
+            if (seen <= sampleSize) {
+                retained.add(ex);
+            } else {
+                int idx = ThreadLocalRandom.current().nextInt(seen);
+                if (idx < sampleSize) {
+                    retained.set(numExemplars + idx, ex);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,293 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+
+/**
+ * Passes messages to another handler on a dedicated thread, so that
+ * threads that report messages don't wait for I/O. Messages are
+ * published into a bounded lock-free ring buffer, which a single
+ * writer thread drains in order. Since messages are formatted lazily,
+ * they are also formatted on the writer thread.
+ *
+ * <p>When the buffer is full, the {@link Overflow} policy decides
+ * what happens to new messages. {@link #close()} waits until all
+ * published messages have been handled. Messages are not accepted
+ * after that. The delegate is not closed.
+ *
+ * <p>The delegate is called by one thread at a time, in the order
+ * of publication, but it must not assume that it is called on the
+ * thread that reported the message.
+ */
+public final class AsyncMessageHandler implements XmlMessageHandler, AutoCloseable {
+
+    /** When sampling, one in this many overflowing messages is kept. */
+    private static final int SAMPLE_RATE = 16;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * What to do with a message when the buffer is full.
+     */
+    public enum Overflow {
+        /** Wait until there is room. No message is lost. */
+        BLOCK,
+        /** Discard the message. */
+        DROP,
+        /**
+         * Keep one in 16 of the messages that overflow, waiting until
+         * there is room for them, and discard the others.
+         */
+        SAMPLE
+    }
+
+    private final XmlMessageHandler delegate;
+    private final Overflow overflow;
+
+    // Bounded multi-producer queue, after Dmitry Vyukov's design.
+    // Each cell has a sequence number, which tells producers and
+    // the consumer whether the cell is ready for them.
+    private final AtomicReferenceArray<XmlException> buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // only accessed by the writer thread
+
+    private final AtomicLong numOverflowed = new AtomicLong();
+    private final AtomicLong numDropped = new AtomicLong();
+    /** Number of producers that are in {@link #accept(XmlException)}, which the writer waits for once closed. */
+    private final AtomicInteger numProducers = new AtomicInteger();
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+    private volatile @Nullable RuntimeException failure;
+
+
+    /**
+     * Create a handler with a buffer of 1024 messages, which blocks
+     * when the buffer is full.
+     */
+    public AsyncMessageHandler(XmlMessageHandler delegate) {
+        this(delegate, 1024, Overflow.BLOCK);
+    }
+
+
+    /**
+     * @param delegate Handler that receives the messages, on the writer thread
+     * @param capacity Size of the buffer, rounded up to a power of two, and at least 2
+     * @param overflow What to do when the buffer is full
+     *
+     * @throws IllegalArgumentException If the capacity is not positive
+     */
+    public AsyncMessageHandler(XmlMessageHandler delegate, int capacity, Overflow overflow) {
+        InternalUtil.assertParamNotNull("delegate", delegate);
+        InternalUtil.assertParamNotNull("overflow", overflow);
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        // with a single cell, the sequence of a filled cell is that of the free cell one lap ahead
+        size = Math.max(size, 2);
+        this.delegate = delegate;
+        this.overflow = overflow;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+
+        // the class is final, so the writer sees a fully constructed instance
+        this.writer = new Thread(this::drain, "ooxml-message-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+
+    @Override
+    public boolean isEnabled(XmlSeverity severity, @Nullable String kind) {
+        return delegate.isEnabled(severity, kind);
+    }
+
+
+    /**
+     * Publishes the message to the writer thread.
+     *
+     * @throws IllegalStateException If the handler is closed
+     */
+    @Override
+    public void accept(XmlException entry) {
+        // registered before closed is checked, so close() either waits
+        // for this producer, or this producer sees that it is closed
+        numProducers.incrementAndGet();
+        try {
+            if (closed) {
+                throw new IllegalStateException("Handler is closed");
+            }
+            publish(entry);
+        } finally {
+            numProducers.decrementAndGet();
+        }
+    }
+
+
+    private void publish(XmlException entry) {
+        if (!offer(entry)) {
+            if (overflow == Overflow.DROP
+                || overflow == Overflow.SAMPLE && numOverflowed.getAndIncrement() % SAMPLE_RATE != 0) {
+                numDropped.incrementAndGet();
+                return;
+            }
+            // the writer keeps draining until this producer is done, even if closed
+            while (!offer(entry)) {
+                LockSupport.unpark(writer);
+                Thread.yield();
+            }
+        }
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+
+    /**
+     * Returns the number of messages that were discarded because
+     * the buffer was full.
+     */
+    public long getNumDropped() {
+        return numDropped.get();
+    }
+
+
+    /**
+     * Waits until all messages published before this call have been
+     * passed to the delegate, then stops the writer thread. This should
+     * be called once the threads that report messages are done. If the
+     * delegate threw an exception, the first one is rethrown here.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // the writer stops once the producers that saw closed=false are done
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        RuntimeException failure = this.failure;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
+    private boolean offer(XmlException entry) {
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) pos & mask;
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(idx, entry);
+                    // publishes the entry to the writer
+                    sequences.lazySet(idx, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the writer has not freed this cell yet
+                return false;
+            } else {
+                // another producer took this cell
+                pos = tail.get();
+            }
+        }
+    }
+
+
+    private @Nullable XmlException poll() {
+        int idx = (int) head & mask;
+        if (sequences.get(idx) != head + 1) {
+            return null;
+        }
+        XmlException entry = buffer.get(idx);
+        buffer.lazySet(idx, null);
+        // frees the cell for the producer that is one lap ahead
+        sequences.lazySet(idx, head + mask + 1);
+        head++;
+        return entry;
+    }
+
+
+    private void drain() {
+        while (true) {
+            XmlException entry = poll();
+            if (entry != null) {
+                handle(entry);
+                continue;
+            }
+            if (closed) {
+                // producers that saw closed=false may still be publishing,
+                // producers that register later see closed=true and publish nothing
+                if (numProducers.get() == 0 && tail.get() == head) {
+                    return;
+                }
+                Thread.yield();
+                continue;
+            }
+            writerParked = true;
+            // recheck to not miss an entry published before the flag was set
+            if (sequences.get((int) head & mask) != head + 1 && !closed) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            writerParked = false;
+        }
+    }
+
+
+    private void handle(XmlException entry) {
+        try {
+            delegate.accept(entry);
+        } catch (RuntimeException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+    }
+}
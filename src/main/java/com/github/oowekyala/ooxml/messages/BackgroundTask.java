@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+
+/**
+ * A computation that is submitted to an executor, but that runs on the
+ * first thread that needs its result if the executor has not started it
+ * yet. Getting the result therefore never waits for a task that is still
+ * queued, or that the executor dropped.
+ */
+final class BackgroundTask<T> {
+
+    private final Supplier<T> computation;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+
+    /**
+     * @param executor If null, the computation runs now
+     */
+    BackgroundTask(Supplier<T> computation, @Nullable Executor executor) {
+        this.computation = computation;
+        if (executor != null) {
+            try {
+                executor.execute(this::run);
+                return;
+            } catch (RejectedExecutionException ignored) {
+                // do it now
+            }
+        }
+        run();
+    }
+
+
+    private void run() {
+        if (started.compareAndSet(false, true)) {
+            try {
+                result.complete(computation.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the result, computing it on this thread if it has not
+     * started, or waiting for it if it is running.
+     */
+    T get() {
+        run();
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
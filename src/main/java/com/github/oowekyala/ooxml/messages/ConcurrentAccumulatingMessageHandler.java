@@ -0,0 +1,121 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An {@link AccumulatingMessageHandler} that may be shared by several
+ * threads. Each thread accumulates its messages in its own buffer,
+ * without synchronization. Each buffer groups messages and applies
+ * the retention policy, so that memory is bounded per thread. When the
+ * handler is closed, the retained messages of all threads are sorted by
+ * position and message, so that the output does not depend on the
+ * scheduling of the threads, and grouped again. Messages that were not
+ * retained are still counted.
+ *
+ * <p>With a retention policy, the exemplars of each message are the
+ * first ones in that order, rather than the first ones reported,
+ * so they also do not depend on how the work was split between threads.
+ * The sample of the other messages is random, as in the superclass.
+ *
+ * <p>The handler must be closed after the reporting threads are done,
+ * eg after they were joined or their executor was shut down.
+ */
+public abstract class ConcurrentAccumulatingMessageHandler extends AccumulatingMessageHandler {
+
+    private static final Comparator<String> NULLS_FIRST = Comparator.nullsFirst(Comparator.naturalOrder());
+
+    private static final Comparator<XmlException> DETERMINISTIC_ORDER =
+        Comparator.comparing((XmlException e) -> e.getPosition().getSystemId(), NULLS_FIRST)
+                  .thenComparingInt(e -> e.getPosition().getLine())
+                  .thenComparingInt(e -> e.getPosition().getColumn())
+                  .thenComparing(XmlException::getSeverity)
+                  .thenComparing(XmlException::getKind, NULLS_FIRST)
+                  .thenComparing(XmlException::getSimpleMessage, NULLS_FIRST);
+
+    private final ConcurrentLinkedQueue<Map<XmlSeverity, Map<String, Group>>> buffers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Map<XmlSeverity, Map<String, Group>>> localBuffer = ThreadLocal.withInitial(() -> {
+        Map<XmlSeverity, Map<String, Group>> buffer = new EnumMap<>(XmlSeverity.class);
+        buffers.add(buffer);
+        return buffer;
+    });
+
+
+    public ConcurrentAccumulatingMessageHandler(XmlMessageHandler basePrinter, XmlSeverity minSeverity) {
+        super(basePrinter, minSeverity);
+    }
+
+
+    /**
+     * Create a handler with a retention policy. The policy applies to the
+     * buffer of each thread, then again when the buffers are merged. The
+     * exemplars are the first messages by position and message. When
+     * messages are sampled, the merged sample is only approximately uniform.
+     *
+     * @see AccumulatingMessageHandler#AccumulatingMessageHandler(XmlMessageHandler, XmlSeverity, int, int)
+     */
+    public ConcurrentAccumulatingMessageHandler(XmlMessageHandler basePrinter, XmlSeverity minSeverity, int numExemplars, int sampleSize) {
+        super(basePrinter, minSeverity, numExemplars, sampleSize);
+    }
+
+
+    @Override
+    public void accept(XmlException ex) {
+        Group group = localBuffer.get()
+                                 .computeIfAbsent(ex.getSeverity(), s -> new HashMap<>())
+                                 .computeIfAbsent(groupingKey(ex), k -> new Group());
+        retain(group, ex, DETERMINISTIC_ORDER);
+    }
+
+
+    @Override
+    public void close(XmlSeverity minSeverityToPrintSummary, XmlSeverity minSeverityToPrintFully) {
+        List<XmlException> merged = new ArrayList<>();
+        List<Runnable> notRetained = new ArrayList<>();
+        for (Map<XmlSeverity, Map<String, Group>> buffer : buffers) {
+            buffer.forEach((severity, groups) -> groups.forEach((key, group) -> {
+                merged.addAll(group.retained);
+                int count = group.count - group.retained.size();
+                notRetained.add(() -> addNotRetained(severity, key, count));
+            }));
+            // the buffer stays registered to its thread
+            buffer.clear();
+        }
+        merged.sort(DETERMINISTIC_ORDER);
+        for (XmlException ex : merged) {
+            super.accept(ex);
+        }
+        // after the retained entries, so that groups are in the order of their first entry
+        notRetained.forEach(Runnable::run);
+        super.close(minSeverityToPrintSummary, minSeverityToPrintFully);
+    }
+}
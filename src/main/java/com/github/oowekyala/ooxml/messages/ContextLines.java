@@ -24,10 +24,9 @@
 
 package com.github.oowekyala.ooxml.messages;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 import com.github.oowekyala.ooxml.messages.Annots.OneBased;
 import com.github.oowekyala.ooxml.messages.Annots.ZeroBased;
@@ -37,6 +36,8 @@ import com.github.oowekyala.ooxml.messages.Annots.ZeroBased;
  */
 public class ContextLines {
 
+    private static final String ELLIPSIS = "...";
+
     /**
      * Line number of the first line of the list in the real document
      */
@@ -45,54 +46,240 @@ public class ContextLines {
      * Index in the list of the line that has the error.
      */
     private final @ZeroBased int errorIdx;
-    private final List<String> lines;
+    /**
+     * The lines are ranges of this text, so that long lines
+     * are not copied before they are cut.
+     */
+    private final String text;
+    private final int[] starts;
+    private final int[] ends;
+    private final int maxLineLength;
 
+    // rendered lazily, several threads may render them but the result is the same
+    private volatile String renderedHead;
+    private volatile String renderedTail;
 
-    ContextLines(List<String> lines, @OneBased int first, int errorIdx) {
-        this.lines = lines;
+
+    /**
+     * @param starts Start offset of each line in the text
+     * @param ends   End offset of each line in the text, excluding the line terminator
+     */
+    ContextLines(String text, int[] starts, int[] ends, @OneBased int first, int errorIdx) {
+        this.text = text;
+        this.starts = starts;
+        this.ends = ends;
         this.first = first;
         this.errorIdx = errorIdx;
         assert first > 0 : "line num is one based";
-        assert (0 <= errorIdx && errorIdx < lines.size())
-            : "Weird indices --- first=" + first + ", errorIdx=" + errorIdx + ", lines=" + lines;
+        assert starts.length == ends.length;
+        assert (0 <= errorIdx && errorIdx < starts.length)
+            : "Weird indices --- first=" + first + ", errorIdx=" + errorIdx + ", numLines=" + starts.length;
+
+        int max = 0;
+        for (int i = 0; i < starts.length; i++) {
+            max = Math.max(max, ends[i] - starts[i]);
+        }
+        this.maxLineLength = max;
     }
 
 
     String make(OoxmlFacade ooxml, NiceXmlMessageSpec spec) {
+        StringBuilder sb = new StringBuilder(estimateLength(ooxml, spec));
+        try {
+            appendTo(sb, ooxml, spec);
+        } catch (IOException e) {
+            throw new AssertionError("StringBuilder does not throw", e);
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Writes the full message to the given appendable: the header,
+     * then the lines with their line number, and a caret line under
+     * the error line. Nothing is formatted into intermediary strings.
+     */
+    void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec) throws IOException {
+        MessageUtil.appendHeader(out, spec);
+        out.append('\n');
+        appendSnippet(out, ooxml, spec);
+    }
+
+
+    /**
+     * Writes only the lines with their line number, and the caret line.
+     * The numbered lines are rendered once and reused for all the messages
+     * on the same line, only the caret line is rendered every time.
+     * If some lines are longer than the {@linkplain OoxmlFacade#getMaxLineWidth() max width},
+     * all lines are cut to a window around the column of the message instead.
+     */
+    void appendSnippet(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec) throws IOException {
+        if (maxLineLength > ooxml.getMaxLineWidth()) {
+            appendWindowedSnippet(out, ooxml, spec);
+            return;
+        }
+        XmlPosition position = spec.getPosition();
+        out.append(getHead()).append('\n');
+        appendCaretLine(out, ooxml.isUseAnsiColors(), spec.getSeverity(), spec.getSimpleMessage(),
+                        position.getColumn(), position.getLength(), pad());
+        out.append('\n'); // skip a line
+        if (errorIdx + 1 < starts.length) {
+            out.append('\n').append(getTail());
+        }
+    }
+
+
+    private void appendWindowedSnippet(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec) throws IOException {
+        XmlPosition position = spec.getPosition();
+        int width = ooxml.getMaxLineWidth();
+        @ZeroBased int column = Math.max(0, position.getColumn() - 1);
+        int errorLineLength = ends[errorIdx] - starts[errorIdx];
+
+        // center the window on the column, but keep it full near the end of the line
+        @ZeroBased int windowStart = Math.max(0, Math.min(column - width / 2, errorLineLength - width));
+        int windowEnd = windowStart + width;
+        int prefix = windowStart > 0 ? ELLIPSIS.length() : 0;
+        int pad = pad();
 
-        // width of largest line number
-        int pad = stringLengthOf(lines.size() + first -1);
+        for (int i = 0; i < starts.length; i++) {
+            if (i > 0) {
+                out.append('\n');
+            }
+            out.append(' ');
+            InternalUtil.appendPadded(out, i + first, pad);
+            out.append("| ");
+            if (prefix > 0) {
+                out.append(ELLIPSIS);
+            }
+            int length = ends[i] - starts[i];
+            out.append(text, starts[i] + Math.min(windowStart, length), starts[i] + Math.min(windowEnd, length));
+            if (length > windowEnd) {
+                out.append(ELLIPSIS);
+            }
 
-        List<String> withLineNums =
-            IntStream.range(0, lines.size())
-                     .mapToObj(i -> addLineNum(i, pad))
-                     .collect(Collectors.collectingAndThen(Collectors.toList(), ArrayList::new));
+            if (i == errorIdx) {
+                // don't let the carets run past the window
+                int caretLength = Math.max(1, Math.min(position.getLength(), windowEnd - column));
+                out.append('\n');
+                appendCaretLine(out, ooxml.isUseAnsiColors(), spec.getSeverity(), spec.getSimpleMessage(),
+                                column - windowStart + prefix + 1, caretLength, pad);
+                out.append('\n'); // skip a line
+            }
+        }
+    }
+
+
+    /** Lines up to the error line, inclusive. */
+    private String getHead() {
+        String head = renderedHead;
+        if (head == null) {
+            head = renderLines(0, errorIdx + 1);
+            renderedHead = head;
+        }
+        return head;
+    }
 
-        String errorLine = addLineNum(errorIdx, pad);
-        // diff added by line numbers
-        int offset = errorLine.length() - lines.get(errorIdx).length();
 
-        String messageLine = InternalUtil.buildCaretLine(spec.getSimpleMessage().trim(),
-                                                         spec.getPosition().getColumn() + offset - 1,
-                                                         spec.getPosition().getLength());
+    /** Lines after the error line. */
+    private String getTail() {
+        String tail = renderedTail;
+        if (tail == null) {
+            tail = renderLines(errorIdx + 1, starts.length);
+            renderedTail = tail;
+        }
+        return tail;
+    }
 
-        String colored = ooxml.isUseAnsiColors() ? spec.getSeverity().withColor(messageLine) : messageLine;
 
-        withLineNums.add(errorIdx + 1, colored);
-        withLineNums.add(errorIdx + 2, ""); // skip a line
+    private String renderLines(@ZeroBased int from, @ZeroBased int to) {
+        int pad = pad();
+        StringBuilder sb = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                sb.append('\n');
+            }
+            sb.append(' ');
+            try {
+                InternalUtil.appendPadded(sb, i + first, pad);
+            } catch (IOException e) {
+                throw new AssertionError("StringBuilder does not throw", e);
+            }
+            sb.append("| ").append(text, starts[i], ends[i]);
+        }
+        return sb.toString();
+    }
 
 
-        return MessageUtil.headerOnly(spec, String.join("\n", withLineNums), false);
+    /** Width of the largest line number. */
+    private int pad() {
+        return InternalUtil.numDigits(starts.length + first - 1);
+    }
+
+
+    /**
+     * Appends the line that points to the given column, in a snippet
+     * whose line numbers have the given width.
+     */
+    static void appendCaretLine(Appendable out,
+                                boolean colored,
+                                XmlSeverity severity,
+                                String message,
+                                @OneBased int column,
+                                int length,
+                                int pad) throws IOException {
+        if (colored) {
+            out.append(severity.getColor().getEscape(false, false, false));
+        }
+        // diff added by line numbers is " " + pad + "| "
+        int offset = pad + 3;
+        InternalUtil.appendCaretLine(out, message.trim(), column + offset - 1, length);
+        if (colored) {
+            out.append(TerminalColor.ANSI_RESET);
+        }
     }
 
 
-    private int stringLengthOf(int i) {
-        return (i + "").length();
+    /** Line number of the first line. */
+    @OneBased int getFirstLine() {
+        return first;
+    }
+
+
+    /** Number of lines. */
+    int getNumLines() {
+        return starts.length;
+    }
+
+
+    /** Length of the longest line. */
+    int getMaxLineLength() {
+        return maxLineLength;
+    }
+
+
+    /** Text of the lines, without line numbers. Each line is copied when it is accessed. */
+    List<String> getLines() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return text.substring(starts[index], ends[index]);
+            }
+
+            @Override
+            public int size() {
+                return starts.length;
+            }
+        };
     }
 
 
-    private String addLineNum(@ZeroBased int idx, int pad) {
-        return String.format(" %" + pad + "d| %s", idx + first, lines.get(idx));
+    private int estimateLength(OoxmlFacade ooxml, NiceXmlMessageSpec spec) {
+        int len = 128 + spec.getSimpleMessage().length();
+        int width = ooxml.getMaxLineWidth();
+        for (int i = 0; i < starts.length; i++) {
+            len += Math.min(ends[i] - starts[i], width) + 8;
+        }
+        return len;
     }
 
 
@@ -0,0 +1,307 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.ref.SoftReference;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+import com.github.oowekyala.ooxml.messages.Annots.ZeroBased;
+
+/**
+ * Immutable positioner that does not use DOM user data. Offsets are
+ * stored in an int table indexed by the position of nodes in document
+ * order. The text of the document is kept compressed, and only inflated
+ * when context lines are needed.
+ *
+ * <p>The document order is computed from the DOM when a node is looked
+ * up, so the document must not be modified structurally after it has
+ * been frozen.
+ *
+ * @see PositionedXmlDoc#freeze()
+ */
+final class FrozenPositioner implements XmlPositioner {
+
+    private final String systemId;
+    private final XmlPosition undefined;
+    private final Document document;
+    /**
+     * Start offset of each node in document order. Attributes come
+     * right after their element, in the order of {@link Element#getAttributes()}.
+     */
+    private final @ZeroBased int[] offsets;
+    /**
+     * Number of entries in {@link #offsets} for each node and its
+     * attributes and descendants.
+     */
+    private final int[] sizes;
+    private final int[] lineOffsets;
+    private final int textLength;
+    private final byte[] compressedText;
+
+    private volatile SoftReference<TextDoc> textDoc;
+    /**
+     * Last node that was looked up. Since validation usually iterates
+     * over the children of a node, this makes it cheap to find the
+     * next sibling.
+     */
+    private volatile Lookup lastLookup;
+
+
+    private FrozenPositioner(String systemId, Document document, int[] offsets, int[] sizes, TextDoc textDoc) {
+        this.systemId = systemId;
+        this.undefined = XmlPosition.undefinedIn(systemId);
+        this.document = document;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.lineOffsets = textDoc.getLineOffsets();
+        this.textLength = textDoc.getTextString().length();
+        this.compressedText = compress(textDoc.getTextString());
+        this.textDoc = new SoftReference<>(null);
+    }
+
+
+    static FrozenPositioner freeze(NewOffsetScanner scanner, TextDoc textDoc, String systemId, Document doc) {
+        int numNodes = 0;
+        for (Node child = doc.getFirstChild(); child != null; child = child.getNextSibling()) {
+            numNodes += countNodes(child);
+        }
+
+        int[] offsets = new int[numNodes];
+        int[] sizes = new int[numNodes];
+        int idx = 0;
+        for (Node child = doc.getFirstChild(); child != null; child = child.getNextSibling()) {
+            idx = fill(child, idx, offsets, sizes, scanner);
+        }
+
+        // the scanner uses the offsets of previous nodes, so
+        // only clear them once everything is computed
+        scanner.clearData(doc);
+        for (Node child = doc.getFirstChild(); child != null; child = child.getNextSibling()) {
+            clear(child, scanner);
+        }
+
+        return new FrozenPositioner(systemId, doc, offsets, sizes, textDoc);
+    }
+
+    private static int countNodes(Node node) {
+        int count = 1;
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            count += attributes.getLength();
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            count += countNodes(child);
+        }
+        return count;
+    }
+
+    private static int fill(Node node, int idx, int[] offsets, int[] sizes, NewOffsetScanner scanner) {
+        offsets[idx] = offsetOf(node, scanner);
+        int next = idx + 1;
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            for (int i = 0; i < attributes.getLength(); i++) {
+                offsets[next] = offsetOf(attributes.item(i), scanner);
+                sizes[next] = 1;
+                next++;
+            }
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            next = fill(child, next, offsets, sizes, scanner);
+        }
+        sizes[idx] = next - idx;
+        return next;
+    }
+
+    private static int offsetOf(Node node, NewOffsetScanner scanner) {
+        try {
+            return scanner.startOffsetOf(node);
+        } catch (RuntimeException e) {
+            // the scanner is best-effort, some node types are
+            // not supported, a missing position is not fatal
+            return -1;
+        }
+    }
+
+    private static void clear(Node node, NewOffsetScanner scanner) {
+        scanner.clearData(node);
+        NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null) {
+            for (int i = 0; i < attributes.getLength(); i++) {
+                scanner.clearData(attributes.item(i));
+            }
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            clear(child, scanner);
+        }
+    }
+
+
+    @Override
+    public XmlPosition startPositionOf(@Nullable Node node) {
+        if (node == null) {
+            return undefined;
+        }
+        final int offset;
+        if (node == document) {
+            offset = textLength == 0 ? -1 : 0;
+        } else if (node.getOwnerDocument() != document) {
+            offset = -1;
+        } else {
+            int idx = indexOf(node);
+            offset = idx < 0 ? -1 : offsets[idx];
+        }
+
+        if (offset < 0) {
+            return undefined;
+        }
+        int line = TextDoc.lineNumberFromOffset(lineOffsets, offset);
+        int column = TextDoc.columnFromOffset(lineOffsets, line, offset);
+        return new XmlPosition(systemId, line, column, NewOffsetScanner.length(node), offset);
+    }
+
+    /**
+     * Returns the index of the node in document order,
+     * or -1 if the node is not in the document.
+     */
+    private int indexOf(Node node) {
+        if (node instanceof Attr) {
+            Element owner = ((Attr) node).getOwnerElement();
+            int ownerIdx = owner == null ? -1 : indexOf(owner);
+            if (ownerIdx < 0) {
+                return -1;
+            }
+            NamedNodeMap attributes = owner.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                if (attributes.item(i) == node) {
+                    return checkIdx(ownerIdx + 1 + i);
+                }
+            }
+            return -1;
+        }
+
+        Lookup last = lastLookup;
+        if (last != null && node.getPreviousSibling() == last.node) {
+            return remember(node, checkIdx(last.idx + sizes[last.idx]));
+        }
+
+        Node parent = node.getParentNode();
+        int idx;
+        if (parent == null) {
+            return -1;
+        } else if (parent == document) {
+            idx = 0;
+        } else {
+            int parentIdx = indexOf(parent);
+            if (parentIdx < 0) {
+                return -1;
+            }
+            NamedNodeMap attributes = parent.getAttributes();
+            idx = parentIdx + 1 + (attributes == null ? 0 : attributes.getLength());
+        }
+
+        for (Node sibling = parent.getFirstChild(); sibling != node; sibling = sibling.getNextSibling()) {
+            if (sibling == null || checkIdx(idx) < 0) {
+                return -1;
+            }
+            idx += sizes[idx];
+        }
+        return remember(node, checkIdx(idx));
+    }
+
+    private int checkIdx(int idx) {
+        return idx < offsets.length ? idx : -1;
+    }
+
+    private int remember(Node node, int idx) {
+        if (idx >= 0) {
+            lastLookup = new Lookup(node, idx);
+        }
+        return idx;
+    }
+
+
+    @Override
+    public @Nullable ContextLines getLinesAround(XmlPosition position, int numContextLines) {
+        return position.isUndefined() ? null : getTextDoc().getLinesAround(position.getLine(), numContextLines);
+    }
+
+    private TextDoc getTextDoc() {
+        TextDoc doc = textDoc.get();
+        if (doc == null) {
+            doc = new TextDoc(decompress(compressedText), lineOffsets);
+            textDoc = new SoftReference<>(doc);
+        }
+        return doc;
+    }
+
+
+    private static byte[] compress(String text) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(new DeflaterOutputStream(bytes), StandardCharsets.UTF_8)) {
+            writer.write(text);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot happen with an in-memory stream", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String decompress(byte[] bytes) {
+        try (Reader reader = new InputStreamReader(new InflaterInputStream(new ByteArrayInputStream(bytes)),
+                                                   StandardCharsets.UTF_8)) {
+            return MessageUtil.readFully(reader);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot happen with an in-memory stream", e);
+        }
+    }
+
+
+    private static final class Lookup {
+
+        private final Node node;
+        private final int idx;
+
+        Lookup(Node node, int idx) {
+            this.node = node;
+            this.idx = idx;
+        }
+    }
+}
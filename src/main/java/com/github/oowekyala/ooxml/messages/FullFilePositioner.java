@@ -24,18 +24,28 @@
 
 package com.github.oowekyala.ooxml.messages;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 import com.github.oowekyala.ooxml.DomUtils;
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+import com.github.oowekyala.ooxml.messages.PositioningStrategy.IndexingMode;
 
 /**
  * Scanner with known document context.
  */
 class FullFilePositioner extends PartialFilePositioner implements XmlPositioner {
 
-    private final NewOffsetScanner scanner;
+    private final Document doc;
+    /** Offsets of the start tags, scanned on the executor, or null. */
+    private final @Nullable BackgroundTask<int[]> startTags;
+    private volatile NewOffsetScanner scanner;
+    private volatile boolean indexed;
 
 
     /**
@@ -43,23 +53,94 @@ class FullFilePositioner extends PartialFilePositioner implements XmlPositioner
      * @param systemId     System ID of the XML file, typically a file name
      */
     public FullFilePositioner(String fullFileText, String systemId, Document doc) {
-        super(fullFileText, systemId);
+        this(fullFileText, systemId, doc, IndexingMode.EAGER, null);
+    }
+
+    /**
+     * @param fullFileText Full text of the XML file
+     * @param systemId     System ID of the XML file, typically a file name
+     * @param indexing     Whether to compute positions now, or on the first lookup
+     * @param executor     If non-null, the line index is built on this executor,
+     *                     and the start tags are found in the text. They are
+     *                     matched with the elements on the first lookup whatever
+     *                     the indexing mode, because the DOM is not thread-safe
+     */
+    FullFilePositioner(String fullFileText, String systemId, Document doc, IndexingMode indexing, @Nullable Executor executor) {
+        super(fullFileText, systemId, executor);
 
-        this.scanner = new NewOffsetScanner(systemId, textDoc);
-        // force resolution to avoid stack overflow because of
-        // recursive implementation of NewOffsetScanner
-        computePositions(doc.getDocumentElement());
+        this.doc = doc;
+        this.startTags = executor == null ? null : new BackgroundTask<>(() -> NewOffsetScanner.scanStartTags(fullFileText), executor);
+        if (indexing == IndexingMode.EAGER && executor == null) {
+            ensureIndexed();
+        }
+    }
+
+    private NewOffsetScanner getScanner() {
+        NewOffsetScanner result = scanner;
+        if (result == null) {
+            synchronized (this) {
+                result = scanner;
+                if (result == null) {
+                    result = new NewOffsetScanner(getSystemId(), textDoc(), doc);
+                    scanner = result;
+                }
+            }
+        }
+        return result;
     }
 
-    void computePositions(Element elt) {
+    private void ensureIndexed() {
+        if (!indexed) {
+            synchronized (this) {
+                if (!indexed) {
+                    // force resolution to avoid stack overflow because of
+                    // recursive implementation of NewOffsetScanner
+                    Element root = doc.getDocumentElement();
+                    if (root != null && !presetStartTags(root)) {
+                        computePositions(getScanner(), root);
+                    }
+                    indexed = true;
+                }
+            }
+        }
+    }
+
+    /** Uses the start tags scanned in the background, if they match the elements. */
+    private boolean presetStartTags(Element root) {
+        int[] starts = startTags == null ? null : startTags.get();
+        if (starts == null) {
+            return false;
+        }
+        List<Element> elements = new ArrayList<>(starts.length);
+        collectElements(root, elements);
+        return getScanner().presetStartOffsets(elements, starts);
+    }
+
+    private static void collectElements(Element elt, List<Element> result) {
+        result.add(elt);
+        for (Element child : DomUtils.children(elt)) {
+            collectElements(child, result);
+        }
+    }
+
+    private static void computePositions(NewOffsetScanner scanner, Element elt) {
         scanner.beginPos(elt);
         for (Element child : DomUtils.children(elt)) {
-            computePositions(child);
+            computePositions(scanner, child);
         }
     }
 
     @Override
-    public XmlPosition startPositionOf(Node node) {
-        return scanner.beginPos(node);
+    public XmlPosition startPositionOf(@Nullable Node node) {
+        ensureIndexed();
+        return getScanner().beginPos(node);
+    }
+
+    /**
+     * Builds a {@link FrozenPositioner} for the document,
+     * and removes the offsets stored on its nodes.
+     */
+    FrozenPositioner freeze() {
+        return FrozenPositioner.freeze(getScanner(), textDoc(), getSystemId(), doc);
     }
 }
@@ -0,0 +1,336 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+
+/**
+ * Accumulates messages and does not display them until the
+ * handler is closed. Messages whose context lines overlap are
+ * then merged into a single snippet, with one caret line per
+ * message, for example:
+ * <pre>{@code
+ * Error at /some/file.xml:3:11 (+1 more)
+ *  1| <?xml version="1.0" encoding="UTF-8" standalone="no"?>
+ *  2| <list>
+ *  3|     <list foo="&amb;" bar=""/>
+ *               ^^^^^ The entity "amb" was referenced, but not declared.
+ *                          ^^^ Warning: Empty attribute
+ *
+ *  4| </list>
+ * }</pre>
+ *
+ * <p>Messages that are alone in their snippet, messages
+ * without context lines, and messages whose context lines
+ * are too long to be shown in full, are passed to the {@link #basePrinter}
+ * unchanged. Merged messages are passed as a single new exception, which
+ * has the cause of the first one, and all of them as
+ * {@linkplain Throwable#getSuppressed() suppressed exceptions}.
+ *
+ * <p>Messages are grouped by document ({@linkplain XmlPosition#getSystemId() system ID}),
+ * so that eg the parser and a reporter may report on the same document.
+ * Documents are printed in the order of their first message, and the
+ * messages of a document in document order, followed by those that have no
+ * position in the document. Snippets are only merged for messages of the same
+ * {@linkplain XmlPositioner positioner}, or without one (if it was released
+ * when the message was formatted) if only one positioner has this system ID.
+ * Messages without a system ID are grouped if they have the same positioner,
+ * otherwise they are printed where they were reported.
+ */
+public class GroupingMessageHandler implements XmlMessageHandler, AutoCloseable {
+
+    private static final Comparator<XmlException> BY_POSITION =
+        Comparator.<XmlException>comparingInt(e -> e.getPosition().getLine())
+            .thenComparingInt(e -> e.getPosition().getColumn());
+
+    private final List<XmlException> entries = new ArrayList<>();
+    protected final XmlMessageHandler basePrinter;
+
+
+    public GroupingMessageHandler(XmlMessageHandler basePrinter) {
+        this.basePrinter = basePrinter;
+    }
+
+
+    /**
+     * Delegates to the {@link #basePrinter}, which handles the messages in the end.
+     */
+    @Override
+    public boolean isEnabled(XmlSeverity severity, @Nullable String kind) {
+        return basePrinter.isEnabled(severity, kind);
+    }
+
+
+    @Override
+    public void accept(XmlException entry) {
+        entries.add(entry);
+    }
+
+
+    /**
+     * Print the accumulated messages, grouped, to the {@link #basePrinter}.
+     */
+    @Override
+    public void close() {
+        // keyed by system ID, or by positioner for documents that have none
+        Map<Object, List<XmlException>> byDocument = new HashMap<>();
+        // in the order of their first message, messages without a document are alone
+        List<List<XmlException>> documents = new ArrayList<>();
+
+        for (XmlException entry : entries) {
+            @Nullable Object document = entry.getPosition().getSystemId();
+            if (document == null) {
+                document = entry.getPositioner();
+            }
+            if (document == null) {
+                List<XmlException> alone = new ArrayList<>(1);
+                alone.add(entry);
+                documents.add(alone);
+            } else {
+                byDocument.computeIfAbsent(document, d -> {
+                    List<XmlException> docEntries = new ArrayList<>();
+                    documents.add(docEntries);
+                    return docEntries;
+                }).add(entry);
+            }
+        }
+        entries.clear();
+
+        documents.forEach(this::printDocument);
+    }
+
+
+    /**
+     * Prints the messages that have the same system ID. They may come
+     * from several documents, eg if a file is parsed several times,
+     * so snippets are only merged for messages of the same positioner.
+     */
+    private void printDocument(List<XmlException> docEntries) {
+        List<XmlPositioner> positioners = new ArrayList<>(1);
+        List<List<XmlException>> byPositioner = new ArrayList<>(1);
+        // messages that were already formatted have no positioner
+        List<XmlException> withoutPositioner = new ArrayList<>();
+        List<XmlException> unpositioned = new ArrayList<>();
+
+        for (XmlException entry : docEntries) {
+            @Nullable XmlPositioner positioner = entry.getPositioner();
+            if (entry.getPosition().isUndefined()) {
+                unpositioned.add(entry);
+            } else if (positioner == null) {
+                withoutPositioner.add(entry);
+            } else {
+                int i = indexOfSame(positioners, positioner);
+                if (i < 0) {
+                    positioners.add(positioner);
+                    byPositioner.add(new ArrayList<>());
+                    i = positioners.size() - 1;
+                }
+                byPositioner.get(i).add(entry);
+            }
+        }
+
+        if (positioners.size() == 1) {
+            // they are from the only document with this system ID
+            byPositioner.get(0).addAll(withoutPositioner);
+            withoutPositioner.clear();
+        }
+        for (List<XmlException> entries : byPositioner) {
+            printSnippets(entries);
+        }
+        // stable, messages at the same position stay in the order they were reported
+        withoutPositioner.sort(BY_POSITION);
+        withoutPositioner.forEach(basePrinter::accept);
+        unpositioned.forEach(basePrinter::accept);
+    }
+
+
+    private static int indexOfSame(List<XmlPositioner> positioners, XmlPositioner positioner) {
+        for (int i = 0; i < positioners.size(); i++) {
+            if (positioners.get(i) == positioner) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Prints the messages of a document. The first one has a positioner
+     * and a facade, which are used for those that have none.
+     */
+    private void printSnippets(List<XmlException> docEntries) {
+        @Nullable XmlPositioner positioner = docEntries.get(0).getPositioner();
+        @Nullable OoxmlFacade docFacade = docEntries.get(0).getFacade();
+        // stable, messages at the same position stay in the order they were reported
+        docEntries.sort(BY_POSITION);
+        if (positioner == null || docFacade == null) {
+            // the first message was formatted concurrently
+            docEntries.forEach(basePrinter::accept);
+            return;
+        }
+
+        List<XmlException> group = new ArrayList<>();
+        List<ContextLines> groupLines = new ArrayList<>();
+        int groupLast = -1;
+
+        for (XmlException entry : docEntries) {
+            OoxmlFacade facade = entry.getFacade();
+            if (facade == null) {
+                facade = docFacade;
+            }
+            @Nullable ContextLines lines =
+                positioner.getLinesAround(entry.getPosition(), facade.getNumContextLines());
+
+            if (lines == null) {
+                basePrinter.accept(entry);
+                continue;
+            }
+
+            if (lines.getMaxLineLength() > facade.getMaxLineWidth()) {
+                // long lines are cut around the column of each message
+                basePrinter.accept(entry);
+                continue;
+            }
+
+            int first = lines.getFirstLine();
+            if (!group.isEmpty() && first > groupLast + 1) {
+                // does not overlap, nor follow directly
+                printGroup(group, groupLines, docFacade);
+                group.clear();
+                groupLines.clear();
+            }
+            group.add(entry);
+            groupLines.add(lines);
+            groupLast = Math.max(groupLast, first + lines.getNumLines() - 1);
+        }
+
+        if (!group.isEmpty()) {
+            printGroup(group, groupLines, docFacade);
+        }
+    }
+
+
+    private void printGroup(List<XmlException> group, List<ContextLines> groupLines, OoxmlFacade docFacade) {
+        if (group.size() == 1) {
+            basePrinter.accept(group.get(0));
+            return;
+        }
+
+        XmlException head = group.get(0);
+        XmlSeverity severity = head.getSeverity();
+        for (XmlException entry : group) {
+            if (entry.getSeverity().compareTo(severity) > 0) {
+                severity = entry.getSeverity();
+            }
+        }
+
+        NiceXmlMessageSpec spec = new NiceXmlMessageSpec(head.getPosition(), head.getSimpleMessage())
+            .withKind(head.getKind())
+            .withSeverity(severity)
+            .withCause(head.getCause());
+
+        StringBuilder sb = new StringBuilder();
+        try {
+            appendGroup(sb, spec, group, groupLines, docFacade);
+        } catch (IOException e) {
+            throw new AssertionError("StringBuilder does not throw", e);
+        }
+
+        XmlException merged = new XmlException(spec, sb.toString());
+        // keeps the kind and cause of each message
+        for (XmlException entry : group) {
+            merged.addSuppressed(entry);
+        }
+        basePrinter.accept(merged);
+    }
+
+
+    private static void appendGroup(Appendable out,
+                                    NiceXmlMessageSpec spec,
+                                    List<XmlException> group,
+                                    List<ContextLines> groupLines,
+                                    OoxmlFacade docFacade) throws IOException {
+
+        // the group is sorted, so the first window starts first
+        int first = groupLines.get(0).getFirstLine();
+        int last = first;
+        for (ContextLines lines : groupLines) {
+            last = Math.max(last, lines.getFirstLine() + lines.getNumLines() - 1);
+        }
+
+        String[] text = new String[last - first + 1];
+        for (ContextLines lines : groupLines) {
+            List<String> strings = lines.getLines();
+            for (int i = 0; i < strings.size(); i++) {
+                text[lines.getFirstLine() - first + i] = strings.get(i);
+            }
+        }
+
+        MessageUtil.appendHeader(out, spec);
+        out.append(" (+");
+        InternalUtil.appendInt(out, group.size() - 1);
+        out.append(" more)\n");
+
+        int pad = InternalUtil.numDigits(last);
+        int nextEntry = 0;
+        for (int line = first; line <= last; line++) {
+            if (line > first) {
+                out.append('\n');
+            }
+            out.append(' ');
+            InternalUtil.appendPadded(out, line, pad);
+            out.append("| ").append(text[line - first]);
+
+            boolean hasCarets = false;
+            // entries are ordered by line, then column
+            while (nextEntry < group.size() && group.get(nextEntry).getPosition().getLine() == line) {
+                XmlException entry = group.get(nextEntry++);
+                OoxmlFacade facade = entry.getFacade();
+                String message = entry.getSeverity() == spec.getSeverity()
+                                 ? entry.getSimpleMessage()
+                                 : entry.getSeverity() + ": " + entry.getSimpleMessage().trim();
+                out.append('\n');
+                ContextLines.appendCaretLine(out,
+                                             (facade == null ? docFacade : facade).isUseAnsiColors(),
+                                             entry.getSeverity(),
+                                             message,
+                                             entry.getPosition().getColumn(),
+                                             entry.getPosition().getLength(),
+                                             pad);
+                hasCarets = true;
+            }
+            if (hasCarets) {
+                out.append('\n'); // skip a line
+            }
+        }
+    }
+}
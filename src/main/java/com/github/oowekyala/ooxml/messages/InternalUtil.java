@@ -19,11 +19,14 @@ package com.github.oowekyala.ooxml.messages;
 
 import static java.lang.Integer.max;
 
+import java.io.IOException;
+
 
 final class InternalUtil {
 
-    private static final char CARET = '^';
     private static final char SPACE = ' ';
+    private static final String SPACES = "                                ";
+    private static final String CARETS = "^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^^";
 
 
     private InternalUtil() {
@@ -38,24 +41,72 @@ final class InternalUtil {
     }
 
 
-    public static String buildCaretLine(String message,/* @OneBased */int column, int rangeLen) {
-        StringBuilder builder = new StringBuilder();
-        repeatChar(builder, SPACE, column);
-        repeatChar(builder, CARET, max(rangeLen, 1));
-        return builder.append(SPACE).append(message).toString();
+    /**
+     * Appends a line with carets under the given column range, followed
+     * by the message.
+     */
+    static void appendCaretLine(Appendable out, String message,/* @OneBased */int column, int rangeLen) throws IOException {
+        appendRepeated(out, SPACES, column);
+        appendRepeated(out, CARETS, max(rangeLen, 1));
+        out.append(SPACE).append(message);
+    }
+
+
+    /**
+     * Appends the decimal representation of the given non-negative
+     * value, left-padded with spaces to the given width.
+     */
+    static void appendPadded(Appendable out, int value, int width) throws IOException {
+        int digits = numDigits(value);
+        appendRepeated(out, SPACES, width - digits);
+        appendInt(out, value, digits);
+    }
+
+
+    /**
+     * Appends the decimal representation of the given int without
+     * going through {@link String#valueOf(int)}.
+     */
+    static void appendInt(Appendable out, int value) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(value);
+        } else if (value < 0) {
+            // can't negate MIN_VALUE
+            out.append(String.valueOf(value));
+        } else {
+            appendInt(out, value, numDigits(value));
+        }
+    }
+
+
+    private static void appendInt(Appendable out, int value, int digits) throws IOException {
+        int divisor = 1;
+        for (int i = 1; i < digits; i++) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            out.append((char) ('0' + value / divisor % 10));
+            divisor /= 10;
+        }
     }
 
-    private static void repeatChar(StringBuilder builder, char c, int n) {
-        final int start = builder.length();
+
+    /** Number of decimal digits of a non-negative int. */
+    static int numDigits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+
+    private static void appendRepeated(Appendable out, String chars, int n) throws IOException {
         while (n > 0) {
-            int lenAdded = builder.length() - start;
-            if (n >= lenAdded && lenAdded > 0) {
-                builder.append(builder, start, builder.length());
-                n -= lenAdded;
-            } else {
-                builder.append(c);
-                n--;
-            }
+            int len = Math.min(n, chars.length());
+            out.append(chars, 0, len);
+            n -= len;
         }
     }
 }
@@ -28,11 +28,21 @@ package com.github.oowekyala.ooxml.messages;
 import static com.github.oowekyala.ooxml.messages.ErrorCleaner.isSchemaValidationMessage;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.text.MessageFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.xml.transform.SourceLocator;
 import javax.xml.transform.TransformerException;
 
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
@@ -44,6 +54,21 @@ class MessageUtil {
     private static final String KIND_SCHEMA_VALIDATION = "Schema validation";
     private static final String KIND_PARSING = "XML parsing";
 
+    private static final int MAX_CACHED_FORMATS = 256;
+    // MessageFormat is not thread-safe, these are never used, only cloned
+    private static final ConcurrentMap<String, MessageFormat> MESSAGE_FORMATS = new ConcurrentHashMap<>();
+
+    private static final int MAX_CACHED_TEMPLATES = 1024;
+    /** Template of messages that have none. */
+    private static final String NO_MESSAGE = "";
+    // least recently used messages are evicted, guarded by itself
+    private static final Map<String, String> MESSAGE_TEMPLATES = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_TEMPLATES;
+        }
+    };
+
 
     static String enquote(String it) {return "'" + it + "'";}
 
@@ -53,20 +78,33 @@ class MessageUtil {
      * known exception types (eg {@link SAXParseException}, {@link TransformerException}).
      */
     static XmlPosition extractPosition(Throwable throwable) {
+        return extractPosition(throwable, null);
+    }
+
+
+    /**
+     * Like {@link #extractPosition(Throwable)}, but if the exception occurred
+     * in the document with the given system ID, the position uses that
+     * instance of the system ID. Positions in the same document then
+     * don't each retain their own copy.
+     */
+    static XmlPosition extractPosition(Throwable throwable, @Nullable String documentSystemId) {
 
         if (throwable instanceof XmlException) {
             return ((XmlException) throwable).getPosition();
         } else if (throwable instanceof SAXParseException) {
             SAXParseException e = (SAXParseException) throwable;
-            return new XmlPosition(e.getSystemId(), e.getLineNumber(), e.getColumnNumber());
+            return new XmlPosition(sameInstance(e.getSystemId(), documentSystemId), e.getLineNumber(), e.getColumnNumber());
         } else if (throwable instanceof TransformerException) {
             if (throwable.getCause() instanceof SAXParseException) {
-                return extractPosition(throwable.getCause());
+                return extractPosition(throwable.getCause(), documentSystemId);
             }
 
             SourceLocator locator = ((TransformerException) throwable).getLocator();
             if (locator != null) {
-                return new XmlPosition(locator.getSystemId(), locator.getLineNumber(), locator.getColumnNumber());
+                return new XmlPosition(sameInstance(locator.getSystemId(), documentSystemId),
+                                       locator.getLineNumber(),
+                                       locator.getColumnNumber());
             }
         }
 
@@ -74,19 +112,35 @@ class MessageUtil {
     }
 
 
+    private static @Nullable String sameInstance(@Nullable String systemId, @Nullable String documentSystemId) {
+        return systemId != null && systemId.equals(documentSystemId) ? documentSystemId : systemId;
+    }
+
+
+    /**
+     * Returns the system ID of the document of the positioner, as the
+     * instance that its positions use.
+     */
+    static @Nullable String documentSystemId(XmlPositioner positioner) {
+        return positioner.startPositionOf(null).getSystemId();
+    }
+
+
     /**
      * Creates an entry for the given exception. Tries to recover the position from the exception.
      *
      * @param exception Exception
+     * @param thrown     Whether the entry will be thrown, see {@link #createEntry(OoxmlFacade, XmlPositioner, NiceXmlMessageSpec, boolean)}
      * @return An exception, possibly enriched with context information
      */
     static XmlException createEntryBestEffort(OoxmlFacade ooxml,
                                               XmlPositioner positioner,
                                               XmlSeverity severity,
-                                              Throwable exception) {
+                                              Throwable exception,
+                                              boolean thrown) {
 
         String kind = extractKind(exception);
-        XmlPosition pos = extractPosition(exception);
+        XmlPosition pos = extractPosition(exception, documentSystemId(positioner));
         String simpleMessage = extractSimpleMessage(exception);
 
         NiceXmlMessageSpec spec = new NiceXmlMessageSpec(pos, simpleMessage)
@@ -94,16 +148,41 @@ class MessageUtil {
             .withSeverity(severity)
             .withCause(exception);
 
-        String fullMessage = ooxml.getFormatter().formatSpec(ooxml, spec, positioner);
-        return new XmlException(spec, fullMessage);
+        return createEntry(ooxml, positioner, spec, thrown);
+    }
+
+
+    /**
+     * Creates an entry for the given spec. Its message is formatted
+     * with the formatter of the facade when it is first requested.
+     *
+     * @param thrown If false, and the facade {@linkplain OoxmlFacade#withStacklessDiagnostics(boolean) is configured so},
+     *               the entry has no stack trace
+     */
+    static XmlException createEntry(OoxmlFacade ooxml, XmlPositioner positioner, NiceXmlMessageSpec spec, boolean thrown) {
+        return new XmlException(spec, ooxml, positioner, thrown || !ooxml.isStacklessDiagnostics());
     }
 
 
-    private static String extractKind(Throwable exception) {
+    static String extractKind(Throwable exception) {
         return exception instanceof SAXParseException && isSchemaValidationMessage(exception.getMessage())
                ? KIND_SCHEMA_VALIDATION : KIND_PARSING;
     }
 
+    private static final Pattern ERROR_CODE = Pattern.compile("^([A-Za-z]\\w*+(?:[-.]\\w++)++):");
+
+    /**
+     * Returns the error code that prefixes the message, eg {@code cvc-complex-type.2.4.a}
+     * for schema validation messages, or null if there is none.
+     */
+    static @Nullable String extractErrorCode(@Nullable String simpleMessage) {
+        if (simpleMessage == null) {
+            return null;
+        }
+        Matcher matcher = ERROR_CODE.matcher(simpleMessage);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
     private static String extractSimpleMessage(Throwable exception) {
         final String simpleMessage;
         if (exception instanceof TransformerException
@@ -116,6 +195,114 @@ class MessageUtil {
     }
 
 
+    /**
+     * Formats the arguments with a {@link MessageFormat}, like {@link MessageFormat#format(String, Object...)}.
+     * Parsed patterns are cached, and cloned for each use, which is cheaper
+     * than parsing them again. When the cache is full, eg because patterns
+     * are built dynamically, an arbitrary pattern is evicted.
+     */
+    static String formatMessage(String pattern, Object[] args) {
+        MessageFormat format = MESSAGE_FORMATS.get(pattern);
+        if (format == null) {
+            format = new MessageFormat(pattern);
+            if (MESSAGE_FORMATS.size() >= MAX_CACHED_FORMATS) {
+                Iterator<String> it = MESSAGE_FORMATS.keySet().iterator();
+                if (it.hasNext()) {
+                    MESSAGE_FORMATS.remove(it.next());
+                }
+            }
+            MESSAGE_FORMATS.putIfAbsent(pattern, format);
+        }
+        return ((MessageFormat) format.clone()).format(args);
+    }
+
+
+    /**
+     * Returns the template of a message, where quoted values are replaced
+     * with {@code '*'} and numbers with {@code #}. For instance, {@code
+     * cvc-datatype-valid.1.2.1: 'abc' is not a valid value for 'integer'.} becomes
+     * {@code cvc-datatype-valid.1.2.1: '*' is not a valid value for '*'.}.
+     * Numbers that are part of a word, like error codes, are kept.
+     * Messages that are null have an empty template. Templates of the
+     * messages that were used last are cached.
+     */
+    static String messageTemplate(@Nullable String message) {
+        if (message == null) {
+            return NO_MESSAGE;
+        }
+        String template;
+        synchronized (MESSAGE_TEMPLATES) {
+            template = MESSAGE_TEMPLATES.get(message);
+        }
+        if (template == null) {
+            template = computeTemplate(message);
+            synchronized (MESSAGE_TEMPLATES) {
+                MESSAGE_TEMPLATES.put(message, template);
+            }
+        }
+        return template;
+    }
+
+    private static String computeTemplate(String message) {
+        final int len = message.length();
+        StringBuilder sb = new StringBuilder(len);
+        int i = 0;
+        while (i < len) {
+            char c = message.charAt(i);
+            boolean wordStart = i == 0 || !isWordChar(message.charAt(i - 1));
+            if ((c == '\'' || c == '"') && wordStart) {
+                int close = message.indexOf(c, i + 1);
+                if (close > 0) {
+                    sb.append(c).append('*').append(c);
+                    i = close + 1;
+                    continue;
+                }
+            } else if (isDigit(c) && wordStart) {
+                int end = i + 1;
+                while (end < len && (isDigit(message.charAt(end))
+                    || message.charAt(end) == '.' && end + 1 < len && isDigit(message.charAt(end + 1)))) {
+                    end++;
+                }
+                if (end == len || !isWordChar(message.charAt(end))) {
+                    sb.append('#');
+                    i = end;
+                    continue;
+                }
+            }
+            sb.append(c);
+            i++;
+        }
+        String template = sb.toString();
+        return template.equals(message) ? message : template;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_';
+    }
+
+
+    /**
+     * Returns an estimation of the length of the document, which
+     * may be an underestimation, or -1 if it is unknown.
+     */
+    static long lengthHint(InputSource inputSource) {
+        InputStream bytes = inputSource.getByteStream();
+        if (inputSource.getCharacterStream() == null && bytes != null) {
+            try {
+                int available = bytes.available();
+                return available > 0 ? available : -1;
+            } catch (IOException ignored) {
+                // the parser will report it
+            }
+        }
+        return -1;
+    }
+
+
     static String readFully(Reader reader) throws IOException {
 
         StringWriter writer = new StringWriter();
@@ -132,26 +319,40 @@ class MessageUtil {
 
 
     public static String headerOnly(NiceXmlMessageSpec spec, String message, boolean singleLine) {
+        StringBuilder sb = new StringBuilder(64 + message.length());
+        try {
+            appendHeader(sb, spec);
+        } catch (IOException e) {
+            throw new AssertionError("StringBuilder does not throw", e);
+        }
+        return sb.append(singleLine ? " - " : "\n").append(message).toString();
+    }
+
+
+    /**
+     * Appends the header of the message, which contains the severity,
+     * kind, and position of the message. This is the first line of a
+     * full message.
+     */
+    static void appendHeader(Appendable out, NiceXmlMessageSpec spec) throws IOException {
 
-        @Nullable String url = spec.getPosition().getSystemId();
+        XmlPosition position = spec.getPosition();
+        @Nullable String url = position.getSystemId();
 
-        String header = spec.getSeverity().toString();
+        out.append(spec.getSeverity().toString());
         String kind = spec.getKind();
         if (kind != null) {
-            header += " (" + kind + ")";
+            out.append(" (").append(kind).append(')');
         }
         if (url != null) {
-            if (spec.getPosition().isUndefined()) {
-                header += " in " + url;
+            if (position.isUndefined()) {
+                out.append(" in ").append(url);
             } else {
-                header += " at " + url + ":" + spec.getPosition().getLine() + ":" + spec.getPosition().getColumn();
+                out.append(" at ").append(url).append(':');
+                InternalUtil.appendInt(out, position.getLine());
+                out.append(':');
+                InternalUtil.appendInt(out, position.getColumn());
             }
         }
-
-        if (singleLine) {
-            return header + " - " + message;
-        } else {
-            return header + "\n" + message;
-        }
     }
 }
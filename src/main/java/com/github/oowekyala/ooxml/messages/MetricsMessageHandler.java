@@ -0,0 +1,313 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+
+/**
+ * Counts messages by severity, by kind and by error code (eg {@code cvc-complex-type.2.4.a}),
+ * and forwards them to another handler. Counters are {@link LongAdder}s,
+ * so that threads that report messages do not contend, and are read
+ * with {@link #snapshot()}.
+ *
+ * <p>The handler also keeps a histogram of the time from the start
+ * of a parse to each message. The start of a parse is marked with
+ * {@link #parseStarted()} on the thread that parses, which is the
+ * thread on which the parser reports messages. Messages reported on
+ * a thread where no parse was started are not in the histogram.
+ *
+ * <p>All messages are counted, so this handler {@linkplain #isEnabled(XmlSeverity, String) enables}
+ * all messages, but only forwards those that the delegate enables.
+ */
+public class MetricsMessageHandler implements XmlMessageHandler {
+
+    /** Upper bounds of the latency buckets, in nanoseconds. The last bucket is unbounded. */
+    private static final long[] LATENCY_BOUNDS = {
+        TimeUnit.MICROSECONDS.toNanos(100),
+        TimeUnit.MILLISECONDS.toNanos(1),
+        TimeUnit.MILLISECONDS.toNanos(10),
+        TimeUnit.MILLISECONDS.toNanos(100),
+        TimeUnit.SECONDS.toNanos(1),
+        TimeUnit.SECONDS.toNanos(10),
+        Long.MAX_VALUE,
+    };
+
+    private final XmlMessageHandler delegate;
+    private final LongSupplier clock;
+    private final long creationTime;
+    private final ThreadLocal<long[]> parseStart = new ThreadLocal<>();
+
+    private final LongAdder[] bySeverity = newAdders(XmlSeverity.values().length);
+    private final ConcurrentMap<String, LongAdder> byKind = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> byCode = new ConcurrentHashMap<>();
+    private final LongAdder[] latencies = newAdders(LATENCY_BOUNDS.length);
+    private final LongAdder latencySum = new LongAdder();
+
+
+    /**
+     * Create a handler that only counts messages.
+     */
+    public MetricsMessageHandler() {
+        this(XmlMessageHandler.NOOP);
+    }
+
+
+    /**
+     * Create a handler that counts messages and forwards them to the given handler.
+     *
+     * @param delegate Handler that receives the messages
+     */
+    public MetricsMessageHandler(XmlMessageHandler delegate) {
+        this(delegate, System::nanoTime);
+    }
+
+
+    MetricsMessageHandler(XmlMessageHandler delegate, LongSupplier clock) {
+        InternalUtil.assertParamNotNull("delegate", delegate);
+        this.delegate = delegate;
+        this.clock = clock;
+        this.creationTime = clock.getAsLong();
+    }
+
+
+    /**
+     * Marks the start of a parse on the current thread. The messages
+     * accepted on this thread until {@link #parseEnded()} record the
+     * time elapsed since then.
+     */
+    public void parseStarted() {
+        long[] start = parseStart.get();
+        if (start == null) {
+            start = new long[1];
+            parseStart.set(start);
+        }
+        start[0] = clock.getAsLong();
+    }
+
+
+    /**
+     * Marks the end of the parse on the current thread.
+     */
+    public void parseEnded() {
+        parseStart.remove();
+    }
+
+
+    @Override
+    public boolean isEnabled(XmlSeverity severity, @Nullable String kind) {
+        return true;
+    }
+
+
+    @Override
+    public void accept(XmlException entry) {
+        bySeverity[entry.getSeverity().ordinal()].increment();
+        if (entry.getKind() != null) {
+            adder(byKind, entry.getKind()).increment();
+        }
+        String code = MessageUtil.extractErrorCode(entry.getSimpleMessage());
+        if (code != null) {
+            adder(byCode, code).increment();
+        }
+
+        long[] start = parseStart.get();
+        if (start != null) {
+            long elapsed = Math.max(0, clock.getAsLong() - start[0]);
+            int bucket = 0;
+            while (elapsed > LATENCY_BOUNDS[bucket]) {
+                bucket++;
+            }
+            latencies[bucket].increment();
+            latencySum.add(elapsed);
+        }
+
+        if (delegate.isEnabled(entry.getSeverity(), entry.getKind())) {
+            delegate.accept(entry);
+        }
+    }
+
+
+    /**
+     * Returns the current values of the counters. Counters are read
+     * one after the other while messages may still be accepted, so
+     * the snapshot is not atomic, but every counter is monotonic.
+     */
+    public Snapshot snapshot() {
+        Map<XmlSeverity, Long> severities = new EnumMap<>(XmlSeverity.class);
+        for (XmlSeverity severity : XmlSeverity.values()) {
+            severities.put(severity, bySeverity[severity.ordinal()].sum());
+        }
+        long[] latencyCounts = new long[latencies.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencyCounts[i] = latencies[i].sum();
+        }
+        return new Snapshot(clock.getAsLong() - creationTime,
+                            severities,
+                            sums(byKind),
+                            sums(byCode),
+                            latencyCounts,
+                            latencySum.sum());
+    }
+
+
+    private static LongAdder adder(ConcurrentMap<String, LongAdder> map, String key) {
+        LongAdder adder = map.get(key);
+        return adder != null ? adder : map.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+
+    private static Map<String, Long> sums(ConcurrentMap<String, LongAdder> map) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        map.forEach((key, adder) -> result.put(key, adder.sum()));
+        return Collections.unmodifiableMap(result);
+    }
+
+
+    private static LongAdder[] newAdders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+
+    /**
+     * Immutable values of the counters of a {@link MetricsMessageHandler}
+     * at some point in time. Rates may be computed from the difference
+     * between two snapshots.
+     */
+    public static final class Snapshot {
+
+        private final long elapsedNanos;
+        private final Map<XmlSeverity, Long> bySeverity;
+        private final Map<String, Long> byKind;
+        private final Map<String, Long> byCode;
+        private final long[] latencyCounts;
+        private final long latencySumNanos;
+
+
+        Snapshot(long elapsedNanos,
+                 Map<XmlSeverity, Long> bySeverity,
+                 Map<String, Long> byKind,
+                 Map<String, Long> byCode,
+                 long[] latencyCounts,
+                 long latencySumNanos) {
+            this.elapsedNanos = elapsedNanos;
+            this.bySeverity = Collections.unmodifiableMap(bySeverity);
+            this.byKind = byKind;
+            this.byCode = byCode;
+            this.latencyCounts = latencyCounts;
+            this.latencySumNanos = latencySumNanos;
+        }
+
+
+        /** Returns the time elapsed between the creation of the handler and this snapshot. */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+
+        /** Returns the total number of messages. */
+        public long getTotalCount() {
+            long total = 0;
+            for (long count : bySeverity.values()) {
+                total += count;
+            }
+            return total;
+        }
+
+
+        /** Returns the number of messages with the given severity. */
+        public long getCount(XmlSeverity severity) {
+            return bySeverity.get(severity);
+        }
+
+
+        /** Returns the number of messages by severity. */
+        public Map<XmlSeverity, Long> getCountsBySeverity() {
+            return bySeverity;
+        }
+
+
+        /**
+         * Returns the number of messages by {@linkplain XmlException#getKind() kind}.
+         * Messages without a kind are not in this map.
+         */
+        public Map<String, Long> getCountsByKind() {
+            return byKind;
+        }
+
+
+        /**
+         * Returns the number of messages by error code, eg {@code cvc-complex-type.2.4.a}.
+         * Messages without an error code, like most well-formedness errors, are not in this map.
+         */
+        public Map<String, Long> getCountsByCode() {
+            return byCode;
+        }
+
+
+        /**
+         * Returns the upper bounds of the buckets of the latency histogram,
+         * in nanoseconds. The last one is {@link Long#MAX_VALUE}.
+         */
+        public long[] getLatencyBucketBoundsNanos() {
+            return LATENCY_BOUNDS.clone();
+        }
+
+
+        /**
+         * Returns the number of messages in each bucket of the latency
+         * histogram. A message is in the first bucket whose bound is
+         * greater than or equal to its latency.
+         */
+        public long[] getLatencyCounts() {
+            return latencyCounts.clone();
+        }
+
+
+        /** Returns the sum of the latencies of the messages in the histogram, in nanoseconds. */
+        public long getLatencySumNanos() {
+            return latencySumNanos;
+        }
+
+
+        @Override
+        public String toString() {
+            return "Snapshot{bySeverity=" + bySeverity + ", byKind=" + byKind + ", byCode=" + byCode + "}";
+        }
+    }
+}
@@ -28,14 +28,18 @@
 
 package com.github.oowekyala.ooxml.messages;
 
+import static com.github.oowekyala.ooxml.messages.Annots.Nullable;
 import static com.github.oowekyala.ooxml.messages.Annots.ZeroBased;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.function.Function;
 import java.util.function.ToIntFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.ProcessingInstruction;
@@ -53,14 +57,32 @@ class NewOffsetScanner {
     private static final String CONTENT_START_OFFSET = PREFIX + "contentStartOffset";
 
     private static final Pattern QUOTES = Pattern.compile("[\"']");
-    private static final UserDataHandler NO_DATA_HANDLER = (operation, key, data1, src, dst) -> {};
+
+    /**
+     * Copies offsets onto the nodes created by {@link Node#cloneNode(boolean)}
+     * and {@link Document#importNode(Node, boolean)}. Adopted nodes keep their
+     * user data, so there is nothing to do for them. Since the offsets know
+     * which scanner computed them, they're still resolved against the original
+     * text once the copy lives in another document.
+     */
+    private static final UserDataHandler COPY_DATA_HANDLER = (operation, key, data, src, dst) -> {
+        if (dst != null
+            && (operation == UserDataHandler.NODE_CLONED || operation == UserDataHandler.NODE_IMPORTED)) {
+            dst.setUserData(key, data, NewOffsetScanner.COPY_DATA_HANDLER);
+        }
+    };
+
     private final String systemId;
+    private final XmlPosition undefined;
     private final TextDoc textDoc;
     private final String fullText;
+    private final Document document;
 
-    NewOffsetScanner(String systemId, TextDoc textDoc) {
+    NewOffsetScanner(String systemId, TextDoc textDoc, Document document) {
         this.systemId = systemId;
+        this.undefined = XmlPosition.undefinedIn(systemId);
         this.textDoc = textDoc;
+        this.document = document;
         fullText = textDoc.getTextString();
     }
 
@@ -116,13 +138,15 @@ class NewOffsetScanner {
 
     private int getOrCompute(Node n, String key, ToIntFunction<Node> compute) {
         Object data = n.getUserData(key);
-        if (data instanceof Integer) {
-            return (int) data;
-        } else {
-            int i = compute.applyAsInt(n);
-            n.setUserData(key, i, NO_DATA_HANDLER);
-            return i;
+        if (data instanceof Offset && ((Offset) data).scanner == this) {
+            return ((Offset) data).value;
         }
+        int i = compute.applyAsInt(n);
+        if (data == null) {
+            // don't overwrite the offset of a node copied from another document
+            n.setUserData(key, new Offset(this, i), COPY_DATA_HANDLER);
+        }
+        return i;
     }
 
     private int startOffsetImpl(Node n) {
@@ -172,6 +196,9 @@ class NewOffsetScanner {
 
         String textString = fullText;
         int searchEnd = textString.indexOf('>', startOffset);
+        if (searchEnd < 0) {
+            searchEnd = textString.length();
+        }
 
         Matcher matcher = Pattern.compile(attr.getName() + "\\s*=")
                                  .matcher(textString)
@@ -312,18 +339,206 @@ class NewOffsetScanner {
     }
 
 
-    public XmlPosition beginPos(Node node) {
-        @ZeroBased
-        int offset = startOffset(node);
+    public XmlPosition beginPos(@Nullable Node node) {
+        if (node == null) {
+            return undefined;
+        }
+        Object data = node.getUserData(START_OFFSET);
+        if (data instanceof Offset && ((Offset) data).scanner != this) {
+            // copied from another document
+            Offset origin = (Offset) data;
+            return origin.scanner.positionAt(origin.value, node);
+        } else if (data == null && !isInScannedDoc(node)) {
+            return foreignPos(node);
+        }
+        return positionAt(startOffset(node), node);
+    }
+
+    private XmlPosition positionAt(@ZeroBased int offset, Node node) {
         if (offset < 0) {
-            return XmlPosition.undefinedIn(systemId);
+            return undefined;
         }
         int line = textDoc.lineNumberFromOffset(offset);
         int column = textDoc.columnFromOffset(line, offset);
-        return new XmlPosition(systemId, line, column, length(node));
+        return new XmlPosition(systemId, line, column, length(node), offset);
+    }
+
+    private boolean isInScannedDoc(Node node) {
+        return node == document || node.getOwnerDocument() == document;
+    }
+
+    /**
+     * Position of a node that has no offset, and is not part of the
+     * scanned document. Scanning it against our text would yield garbage.
+     * Attributes can still be found if their element was copied from
+     * a scanned document.
+     */
+    private XmlPosition foreignPos(Node node) {
+        if (node instanceof Attr && ((Attr) node).getOwnerElement() != null) {
+            Object data = ((Attr) node).getOwnerElement().getUserData(START_OFFSET);
+            if (data instanceof Offset) {
+                Offset elt = (Offset) data;
+                int offset = elt.value < 0 ? -1 : elt.scanner.attributeOffset((Attr) node, elt.value);
+                return elt.scanner.positionAt(offset, node);
+            }
+        }
+        return undefined;
+    }
+
+    /**
+     * Returns the start offset of a node of the scanned document,
+     * or -1 if it cannot be found.
+     */
+    @ZeroBased int startOffsetOf(Node node) {
+        return startOffset(node);
+    }
+
+    /**
+     * Removes the offsets stored on the given node.
+     */
+    void clearData(Node node) {
+        node.setUserData(START_OFFSET, null, null);
+        node.setUserData(END_OFFSET, null, null);
+        node.setUserData(CONTENT_START_OFFSET, null, null);
+    }
+
+    /**
+     * Sets the start offsets of the given elements, which were computed
+     * by {@link #scanStartTags(String)}. Returns false and sets nothing
+     * if the elements don't match the start tags, eg because an entity
+     * reference expanded to elements that are not in the text.
+     *
+     * @param elements  Elements of the scanned document, in document order
+     * @param startTags Offsets of the start tags in the text
+     */
+    boolean presetStartOffsets(List<Element> elements, int[] startTags) {
+        if (elements.size() != startTags.length) {
+            return false;
+        }
+        for (int i = 0; i < startTags.length; i++) {
+            String name = elements.get(i).getTagName();
+            int end = startTags[i] + 1 + name.length();
+            if (!fullText.startsWith(name, startTags[i] + 1)
+                || end >= fullText.length()
+                || !isTagNameEnd(fullText.charAt(end))) {
+                return false;
+            }
+        }
+        for (int i = 0; i < startTags.length; i++) {
+            Element elt = elements.get(i);
+            if (elt.getUserData(START_OFFSET) == null) {
+                elt.setUserData(START_OFFSET, new Offset(this, startTags[i]), COPY_DATA_HANDLER);
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isTagNameEnd(char c) {
+        return c == '>' || c == '/' || Character.isWhitespace(c);
+    }
+
+
+    /**
+     * Returns the offsets of the start tags of the text, in document
+     * order. This only reads the text, so it may run on another thread
+     * than the one that uses the DOM. Returns null if the text may
+     * contain elements that are not spelled out, ie if it has an internal
+     * DTD subset or references to entities that are not predefined.
+     */
+    static int @Nullable [] scanStartTags(String text) {
+        int[] starts = new int[16];
+        int n = 0;
+        int len = text.length();
+        int i = 0;
+        while (i < len) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                int semi = text.indexOf(';', i);
+                if (semi < 0 || !isPredefinedReference(text, i + 1, semi)) {
+                    return null;
+                }
+                i = semi + 1;
+                continue;
+            } else if (c != '<') {
+                i++;
+                continue;
+            }
+
+            if (text.startsWith("<!--", i)) {
+                i = skipPast(text, "-->", i + 4);
+            } else if (text.startsWith("<![CDATA[", i)) {
+                i = skipPast(text, "]]>", i + 9);
+            } else if (text.startsWith("<?", i)) {
+                i = skipPast(text, "?>", i + 2);
+            } else if (text.startsWith("<!", i)) {
+                // doctype
+                int end = skipTag(text, i + 2);
+                if (end < 0 || text.lastIndexOf('[', end) > i) {
+                    return null;
+                }
+                i = end;
+            } else if (text.startsWith("</", i)) {
+                i = skipPast(text, ">", i + 2);
+            } else {
+                if (n == starts.length) {
+                    starts = Arrays.copyOf(starts, n * 2);
+                }
+                starts[n++] = i;
+                i = skipTag(text, i + 1);
+            }
+            if (i < 0) {
+                return null;
+            }
+        }
+        return Arrays.copyOf(starts, n);
+    }
+
+
+    /** Returns the index after the end of the tag, skipping quoted values, or -1. */
+    private static int skipTag(String text, int i) {
+        char quote = 0;
+        for (; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+
+    private static int skipPast(String text, String end, int from) {
+        int idx = text.indexOf(end, from);
+        return idx < 0 ? -1 : idx + end.length();
+    }
+
+
+    private static boolean isPredefinedReference(String text, int start, int end) {
+        if (end - start > 1 && text.charAt(start) == '#') {
+            // character reference
+            return true;
+        }
+        switch (end - start) {
+        case 2:
+            return text.startsWith("lt", start) || text.startsWith("gt", start);
+        case 3:
+            return text.startsWith("amp", start);
+        case 4:
+            return text.startsWith("quot", start) || text.startsWith("apos", start);
+        default:
+            return false;
+        }
     }
 
-    private int length(Node node) {
+
+    static int length(Node node) {
         if (node instanceof Attr) {
             return ((Attr) node).getName().length();
         } else if (node instanceof Element) {
@@ -334,4 +549,19 @@ class NewOffsetScanner {
     }
 
 
+    /**
+     * An offset attached to a node as user data. This remembers the
+     * scanner that computed it, so that nodes copied to another document
+     * can still be positioned in their original source.
+     */
+    private static final class Offset {
+
+        private final NewOffsetScanner scanner;
+        private final @ZeroBased int value;
+
+        Offset(NewOffsetScanner scanner, int value) {
+            this.scanner = scanner;
+            this.value = value;
+        }
+    }
 }
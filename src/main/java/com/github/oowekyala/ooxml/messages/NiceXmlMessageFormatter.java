@@ -24,6 +24,8 @@
 
 package com.github.oowekyala.ooxml.messages;
 
+import java.io.IOException;
+
 import com.github.oowekyala.ooxml.messages.Annots.Nullable;
 
 /**
@@ -37,8 +39,62 @@ public interface NiceXmlMessageFormatter {
     String formatSpec(OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner);
 
 
-    NiceXmlMessageFormatter SINGLE_LINE =
-        (ooxml, spec, positioner) -> MessageUtil.headerOnly(spec, spec.getSimpleMessage(), true);
+    /**
+     * Writes the same message as {@link #formatSpec(OoxmlFacade, NiceXmlMessageSpec, XmlPositioner) formatSpec}
+     * to the given appendable, eg a {@link java.io.Writer}, a {@link java.io.PrintStream}
+     * or a {@link java.nio.CharBuffer}. The default implementation
+     * appends the result of {@code formatSpec}. The formatters of this
+     * interface override it to write the message piecewise, without
+     * building it as a string first.
+     *
+     * @throws IOException If the appendable throws
+     */
+    default void formatTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+        out.append(formatSpec(ooxml, spec, positioner));
+    }
+
+
+    /**
+     * Returns a formatter that lays out messages according to the given
+     * template. The template is parsed once, here, and not when formatting
+     * messages. It may contain the following fields:
+     * <ul>
+     * <li>{@code {severity}}: the {@linkplain XmlSeverity severity}, eg {@code Error};
+     * <li>{@code {kind}}: the {@linkplain NiceXmlMessageSpec#getKind() kind}, if any;
+     * <li>{@code {systemId}}: the system id of the document, if known;
+     * <li>{@code {line}} and {@code {column}}: the position, if it is defined;
+     * <li>{@code {message}}: the {@linkplain NiceXmlMessageSpec#getSimpleMessage() simple message};
+     * <li>{@code {snippet}}: the lines around the position, with a caret line, if
+     * the positioner has them.
+     * </ul>
+     * Fields that have no value are left empty. Literal braces are written <code>{{</code> and <code>}}</code>.
+     * For example:
+     * <pre>{@code
+     * NiceXmlMessageFormatter.compile("{systemId}:{line}:{column}: {severity}: {message}\n{snippet}")
+     * }</pre>
+     *
+     * @param template Template
+     * @return A formatter
+     * @throws IllegalArgumentException If the template contains an unknown field, or an unclosed brace
+     * @throws NullPointerException     If the template is null
+     */
+    static NiceXmlMessageFormatter compile(String template) {
+        return TemplateFormatter.compile(template);
+    }
+
+
+    NiceXmlMessageFormatter SINGLE_LINE = new NiceXmlMessageFormatter() {
+        @Override
+        public String formatSpec(OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) {
+            return MessageUtil.headerOnly(spec, spec.getSimpleMessage(), true);
+        }
+
+        @Override
+        public void formatTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+            MessageUtil.appendHeader(out, spec);
+            out.append(" - ").append(spec.getSimpleMessage());
+        }
+    };
 
 
     /**
@@ -53,12 +109,27 @@ public interface NiceXmlMessageFormatter {
      *     4| </list>
      * }</pre>
      */
-    NiceXmlMessageFormatter FULL_MESSAGE = (ooxml, spec, positioner) -> {
-        @Nullable ContextLines linesAround =
-            positioner.getLinesAround(spec.getPosition(), ooxml.getNumContextLines());
+    NiceXmlMessageFormatter FULL_MESSAGE = new NiceXmlMessageFormatter() {
+        @Override
+        public String formatSpec(OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) {
+            @Nullable ContextLines linesAround =
+                positioner.getLinesAround(spec.getPosition(), ooxml.getNumContextLines());
+
+            return linesAround == null ? SINGLE_LINE.formatSpec(ooxml, spec, positioner)
+                                       : linesAround.make(ooxml, spec);
+        }
+
+        @Override
+        public void formatTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+            @Nullable ContextLines linesAround =
+                positioner.getLinesAround(spec.getPosition(), ooxml.getNumContextLines());
 
-        return linesAround == null ? SINGLE_LINE.formatSpec(ooxml, spec, positioner)
-                                   : linesAround.make(ooxml, spec);
+            if (linesAround == null) {
+                SINGLE_LINE.formatTo(out, ooxml, spec, positioner);
+            } else {
+                linesAround.appendTo(out, ooxml, spec);
+            }
+        }
     };
 
 }
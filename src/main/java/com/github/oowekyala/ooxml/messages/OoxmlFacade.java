@@ -30,6 +30,9 @@ import static com.github.oowekyala.ooxml.messages.XmlSeverity.WARNING;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.validation.Schema;
@@ -41,6 +44,11 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+import com.github.oowekyala.ooxml.messages.PositioningStrategy.CaptureMode;
+import com.github.oowekyala.ooxml.messages.PositioningStrategy.IndexingMode;
+import com.github.oowekyala.ooxml.messages.PositioningStrategy.ReportDensity;
+
 /**
  * Main entry point of the API. Example usage:
  *
@@ -85,6 +93,16 @@ public final class OoxmlFacade {
     private NiceXmlMessageFormatter formatter = NiceXmlMessageFormatter.FULL_MESSAGE;
     private boolean useAnsiColors = false;
     private int numContextLines = 3;
+    private int maxLineWidth = 1000;
+    private PositioningStrategy positioningStrategy = PositioningStrategy.DEFAULT;
+    private ReportDensity reportDensity = ReportDensity.SPARSE;
+    private @Nullable Executor indexingExecutor;
+    private int maxErrors = Integer.MAX_VALUE;
+    private int maxErrorsPerKind = Integer.MAX_VALUE;
+    private boolean stacklessDiagnostics = false;
+
+    /** Copy of the settings used to format messages, reset when they change. */
+    private volatile @Nullable OoxmlFacade renderingSettings;
 
 
     public OoxmlFacade() {
@@ -93,6 +111,7 @@ public final class OoxmlFacade {
 
     public OoxmlFacade withFormatter(NiceXmlMessageFormatter formatter) {
         this.formatter = formatter;
+        this.renderingSettings = null;
         return this;
     }
 
@@ -104,16 +123,146 @@ public final class OoxmlFacade {
 
     public OoxmlFacade withAnsiColors(boolean useAnsiColors) {
         this.useAnsiColors = useAnsiColors;
+        this.renderingSettings = null;
         return this;
     }
 
 
     public OoxmlFacade withContextLines(int numContextLines) {
         this.numContextLines = numContextLines;
+        this.renderingSettings = null;
+        return this;
+    }
+
+
+    /**
+     * Sets the maximum number of characters of a source line that is
+     * shown in context lines. If a context line is longer, for instance
+     * in minified documents, all context lines are cut to a window of
+     * this width around the column of the message, and cut ends are marked
+     * with an ellipsis. The default is 1000.
+     *
+     * @throws IllegalArgumentException If the width is not positive
+     */
+    public OoxmlFacade withMaxLineWidth(int maxLineWidth) {
+        if (maxLineWidth <= 0) {
+            throw new IllegalArgumentException("Max line width should be positive: " + maxLineWidth);
+        }
+        this.maxLineWidth = maxLineWidth;
+        this.renderingSettings = null;
+        return this;
+    }
+
+
+    /**
+     * Sets the strategy that chooses how documents are positioned.
+     * The default is {@link PositioningStrategy#DEFAULT}.
+     */
+    public OoxmlFacade withPositioningStrategy(PositioningStrategy positioningStrategy) {
+        InternalUtil.assertParamNotNull("positioningStrategy", positioningStrategy);
+        this.positioningStrategy = positioningStrategy;
+        return this;
+    }
+
+
+    /**
+     * Sets how many messages are expected to be reported on the
+     * parsed documents. This is passed to the {@link PositioningStrategy}.
+     * The default is {@link ReportDensity#SPARSE}.
+     */
+    public OoxmlFacade withReportDensity(ReportDensity reportDensity) {
+        InternalUtil.assertParamNotNull("reportDensity", reportDensity);
+        this.reportDensity = reportDensity;
         return this;
     }
 
 
+    /**
+     * Sets an executor on which positions are precomputed after
+     * {@link #parse(DocumentBuilder, InputSource) parse} returns. If
+     * non-null, parsing returns as soon as the DOM is built, and the
+     * line index and the offsets of the start tags of the document are
+     * computed on this executor, from the text only. The first lookup
+     * on the positioner waits for them if needed, or computes them itself
+     * if the executor has not started to. Then it matches the start tags
+     * with the elements, which is done on the thread of the caller, because
+     * the DOM is not thread-safe, even for reading. If they don't match,
+     * eg because entities expand to elements, positions are computed
+     * from the DOM like without executor.
+     *
+     * <p>This has no effect on documents that are {@linkplain PositioningStrategy.TextRetention#FROZEN frozen}
+     * by the {@linkplain #withPositioningStrategy(PositioningStrategy) positioning strategy}.
+     * The default is null.
+     */
+    public OoxmlFacade withIndexingExecutor(@Nullable Executor indexingExecutor) {
+        this.indexingExecutor = indexingExecutor;
+        return this;
+    }
+
+
+    /**
+     * Limits the number of recoverable errors that are reported
+     * while parsing a single document. Errors of a {@linkplain XmlException#getKind() kind}
+     * that already reached {@code maxErrorsPerKind} are not reported
+     * anymore, and cost almost nothing. When a document has more
+     * than {@code maxErrors} errors, parsing is aborted: a summary
+     * {@link XmlException} is passed to the {@linkplain #getPrinter() printer},
+     * then thrown. By default there is no limit.
+     *
+     * @param maxErrors        Maximum number of errors in a document
+     * @param maxErrorsPerKind Maximum number of errors of a given kind
+     *                         that are reported in a document
+     *
+     * @throws IllegalArgumentException If a parameter is negative
+     */
+    public OoxmlFacade withErrorBudget(int maxErrors, int maxErrorsPerKind) {
+        if (maxErrors < 0 || maxErrorsPerKind < 0) {
+            throw new IllegalArgumentException("Negative error budget: " + maxErrors + ", " + maxErrorsPerKind);
+        }
+        this.maxErrors = maxErrors;
+        this.maxErrorsPerKind = maxErrorsPerKind;
+        return this;
+    }
+
+
+    /**
+     * If true, the {@link XmlException}s that are only passed to the
+     * {@linkplain #getPrinter() printer} are created without a stack trace,
+     * which is costly to fill in. This is useful when validating many
+     * documents. Exceptions that are thrown, like fatal parsing errors,
+     * always have a stack trace. The default is false.
+     *
+     * @see XmlMessageReporterBase#createEntry(NiceXmlMessageSpec, XmlPositioner)
+     */
+    public OoxmlFacade withStacklessDiagnostics(boolean stacklessDiagnostics) {
+        this.stacklessDiagnostics = stacklessDiagnostics;
+        return this;
+    }
+
+
+    /**
+     * Returns a facade with the same settings for formatting messages,
+     * which is not modified when this one is. Messages that are formatted
+     * lazily keep this one, so that they are formatted with the settings
+     * of the time they were created. The copy is shared until the
+     * settings change.
+     */
+    OoxmlFacade getRenderingSettings() {
+        OoxmlFacade settings = renderingSettings;
+        if (settings == null) {
+            settings = new OoxmlFacade();
+            settings.formatter = formatter;
+            settings.useAnsiColors = useAnsiColors;
+            settings.numContextLines = numContextLines;
+            settings.maxLineWidth = maxLineWidth;
+            settings.printer = XmlMessageHandler.NOOP;
+            settings.renderingSettings = settings;
+            renderingSettings = settings;
+        }
+        return settings;
+    }
+
+
     public NiceXmlMessageFormatter getFormatter() {
         return formatter;
     }
@@ -132,6 +281,34 @@ public final class OoxmlFacade {
         return numContextLines;
     }
 
+    public int getMaxLineWidth() {
+        return maxLineWidth;
+    }
+
+    public PositioningStrategy getPositioningStrategy() {
+        return positioningStrategy;
+    }
+
+    public ReportDensity getReportDensity() {
+        return reportDensity;
+    }
+
+    public @Nullable Executor getIndexingExecutor() {
+        return indexingExecutor;
+    }
+
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    public int getMaxErrorsPerKind() {
+        return maxErrorsPerKind;
+    }
+
+    public boolean isStacklessDiagnostics() {
+        return stacklessDiagnostics;
+    }
+
 
     /**
      * Parses an XML document and creates an associated {@link XmlPositioner}.
@@ -150,6 +327,9 @@ public final class OoxmlFacade {
      * <p>For best messages back your {@link InputSource} with an
      * {@link InputStream}, or better, a {@link Reader}.
      *
+     * <p>How the text is captured and the nodes are positioned is
+     * chosen by the {@linkplain #withPositioningStrategy(PositioningStrategy) positioning strategy}.
+     *
      * @param domBuilder          Preconfigured DOM builder, the {@linkplain DocumentBuilder#setErrorHandler(ErrorHandler)
      *                            error handler} is set by this method.
      * @param inputSource         Source for the XML document. The {@linkplain InputSource#setSystemId(String) system
@@ -160,6 +340,10 @@ public final class OoxmlFacade {
      */
     public PositionedXmlDoc parse(DocumentBuilder domBuilder,
                                   InputSource inputSource) throws XmlException, IOException {
+        long lengthHint = MessageUtil.lengthHint(inputSource);
+        if (positioningStrategy.captureMode(lengthHint, reportDensity) == CaptureMode.NONE) {
+            return parseWithoutText(domBuilder, inputSource);
+        }
         return parseImpl(domBuilder, spyOn(inputSource));
     }
 
@@ -167,26 +351,70 @@ public final class OoxmlFacade {
     private PositionedXmlDoc parseImpl(DocumentBuilder builder, SpyInputSource isource) throws XmlException, IOException {
 
         builder.setErrorHandler(new MyErrorHandler(getPrinter()) {
+            private PartialFilePositioner positioner;
+
             @Override
             XmlPositioner getPositioner() {
-                return new PartialFilePositioner(isource.getReadSoFar(), isource.getSystemId());
+                // the exceptions keep their positioner, share it as long
+                // as no more text was read
+                String text = isource.getReadSoFar();
+                if (positioner == null || !positioner.hasText(text)) {
+                    positioner = new PartialFilePositioner(text, isource.getSystemId());
+                }
+                return positioner;
             }
         });
 
         try {
             Document doc = builder.parse(isource);
-            FullFilePositioner positioner = new FullFilePositioner(isource.getReadSoFar(), isource.getSystemId(), doc);
-
-            return new PositionedXmlDoc(doc, positioner);
+            return new PositionedXmlDoc(doc, createPositioner(isource.getReadSoFar(), isource.getSystemId(), doc));
         } catch (SAXException e) {
             PartialFilePositioner positioner = new PartialFilePositioner(isource.getReadSoFar(), isource.getSystemId());
-            XmlException ex = MessageUtil.createEntryBestEffort(this, positioner, ERROR, e);
-            getPrinter().accept(ex);
-            throw ex;
+            throw reportFatal(positioner, e);
         }
     }
 
 
+    private PositionedXmlDoc parseWithoutText(DocumentBuilder builder, InputSource isource) throws XmlException, IOException {
+        XmlPositioner positioner = XmlPositioner.noPositioner(isource.getSystemId());
+
+        builder.setErrorHandler(new MyErrorHandler(getPrinter()) {
+            @Override
+            XmlPositioner getPositioner() {
+                return positioner;
+            }
+        });
+
+        try {
+            return new PositionedXmlDoc(builder.parse(isource), positioner);
+        } catch (SAXException e) {
+            throw reportFatal(positioner, e);
+        }
+    }
+
+
+    private XmlPositioner createPositioner(String text, String systemId, Document doc) {
+        switch (positioningStrategy.textRetention(text.length(), reportDensity)) {
+        case NONE:
+            return XmlPositioner.noPositioner(systemId);
+        case FROZEN:
+            // freezing computes all positions anyway
+            return new FullFilePositioner(text, systemId, doc, IndexingMode.LAZY, null).freeze();
+        case FULL:
+        default:
+            IndexingMode indexing = positioningStrategy.indexingMode(text.length(), reportDensity);
+            return new FullFilePositioner(text, systemId, doc, indexing, indexingExecutor);
+        }
+    }
+
+
+    private XmlException reportFatal(XmlPositioner positioner, SAXException e) {
+        XmlException ex = MessageUtil.createEntryBestEffort(this, positioner, ERROR, e, true);
+        getPrinter().accept(ex);
+        return ex;
+    }
+
+
     private static SpyInputSource spyOn(InputSource inputSource) throws IOException {
         SpyInputSource is = new SpyInputSource();
         is.setSystemId(inputSource.getSystemId());
@@ -208,6 +436,9 @@ public final class OoxmlFacade {
     private abstract class MyErrorHandler implements ErrorHandler {
 
         private final XmlMessageHandler handler;
+        private final Map<String, Integer> numErrorsByKind = new HashMap<>();
+        private int numErrors;
+        private int numSuppressed;
 
         public MyErrorHandler(XmlMessageHandler handler) {
             this.handler = handler;
@@ -215,23 +446,48 @@ public final class OoxmlFacade {
 
         abstract XmlPositioner getPositioner();
 
-        private XmlException parseException(SAXParseException exception, XmlSeverity severity) {
-            return MessageUtil.createEntryBestEffort(OoxmlFacade.this, getPositioner(), severity, exception);
+        private XmlException parseException(SAXParseException exception, XmlSeverity severity, boolean thrown) {
+            return MessageUtil.createEntryBestEffort(OoxmlFacade.this, getPositioner(), severity, exception, thrown);
         }
 
         @Override
         public void warning(SAXParseException exception) {
-            handler.accept(parseException(exception, WARNING));
+            if (handler.isEnabled(WARNING, MessageUtil.extractKind(exception))) {
+                handler.accept(parseException(exception, WARNING, false));
+            }
         }
 
         @Override
         public void error(SAXParseException exception) {
-            handler.accept(parseException(exception, ERROR));
+            String kind = MessageUtil.extractKind(exception);
+            numErrors++;
+            int numOfKind = numErrorsByKind.merge(kind, 1, Integer::sum);
+            if (numErrors > maxErrors) {
+                numSuppressed++;
+                XmlException ex = budgetExhausted(exception, kind);
+                handler.accept(ex);
+                throw ex;
+            } else if (numOfKind > maxErrorsPerKind) {
+                numSuppressed++;
+            } else if (handler.isEnabled(ERROR, kind)) {
+                handler.accept(parseException(exception, ERROR, false));
+            }
+        }
+
+        private XmlException budgetExhausted(SAXParseException exception, String kind) {
+            String message = "Parsing aborted after " + numErrors + " errors, "
+                + numSuppressed + " of which were not reported. Last error: " + exception.getMessage();
+            XmlPosition position = MessageUtil.extractPosition(exception, MessageUtil.documentSystemId(getPositioner()));
+            NiceXmlMessageSpec spec = new NiceXmlMessageSpec(position, message)
+                .withKind(kind)
+                .withSeverity(ERROR)
+                .withCause(exception);
+            return MessageUtil.createEntry(OoxmlFacade.this, getPositioner(), spec, true);
         }
 
         @Override
         public void fatalError(SAXParseException exception) {
-            XmlException ex = parseException(exception, ERROR);
+            XmlException ex = parseException(exception, ERROR, true);
             handler.accept(ex);
             throw ex;
         }
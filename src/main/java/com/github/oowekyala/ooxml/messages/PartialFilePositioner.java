@@ -24,6 +24,8 @@
 
 package com.github.oowekyala.ooxml.messages;
 
+import java.util.concurrent.Executor;
+
 import org.w3c.dom.Node;
 
 import com.github.oowekyala.ooxml.messages.Annots.Nullable;
@@ -34,28 +36,58 @@ import com.github.oowekyala.ooxml.messages.Annots.Nullable;
 class PartialFilePositioner implements XmlPositioner {
 
     private static final int NUM_LINES_AROUND = 3;
-    protected final TextDoc textDoc;
+    private final BackgroundTask<TextDoc> textDoc;
+    private final String fullFileText;
     private final String systemId;
+    private final XmlPosition undefined;
 
 
     /**
      * @param fullFileText Full text of the XML file
      */
     public PartialFilePositioner(String fullFileText, String systemId) {
-        this.textDoc = new TextDoc(fullFileText);
+        this(fullFileText, systemId, null);
+    }
+
+    /**
+     * @param fullFileText Full text of the XML file
+     * @param executor     If non-null, the line index is built on this executor
+     */
+    PartialFilePositioner(String fullFileText, String systemId, @Nullable Executor executor) {
+        this.textDoc = new BackgroundTask<>(() -> new TextDoc(fullFileText), executor);
+        this.fullFileText = fullFileText;
         this.systemId = systemId;
+        this.undefined = XmlPosition.undefinedIn(systemId);
+    }
+
+    /** Whether this positioner was built for the given string instance. */
+    boolean hasText(String text) {
+        return fullFileText == text;
+    }
+
+    /**
+     * Returns the text doc, building it now if the executor has
+     * not started to, or waiting for it if it is being built.
+     */
+    protected TextDoc textDoc() {
+        return textDoc.get();
+    }
+
+
+    String getSystemId() {
+        return systemId;
     }
 
 
     @Override
     public XmlPosition startPositionOf(@Nullable Node node) {
-        return XmlPosition.undefinedIn(systemId);
+        return undefined;
     }
 
 
     @Override
     public @Nullable ContextLines getLinesAround(XmlPosition position, int numContextLines) {
-        return position.isUndefined() ? null : textDoc.getLinesAround(position.getLine(), numContextLines);
+        return position.isUndefined() ? null : textDoc().getLinesAround(position.getLine(), numContextLines);
     }
 
 
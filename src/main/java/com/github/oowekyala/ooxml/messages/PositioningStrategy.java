@@ -0,0 +1,172 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.xml.sax.InputSource;
+
+/**
+ * Chooses how {@link OoxmlFacade#parse(DocumentBuilder, InputSource)}
+ * captures the text of a document and builds its {@link XmlPositioner}.
+ * Small configuration files and huge data files need different
+ * trade-offs, the choice is made for each document from its length
+ * and from the {@linkplain OoxmlFacade#withReportDensity(ReportDensity) expected report density}.
+ *
+ * <p>All methods have a default implementation that preserves the behaviour
+ * of {@link #DEFAULT}, so implementations only override what they need.
+ *
+ * @see OoxmlFacade#withPositioningStrategy(PositioningStrategy)
+ */
+public interface PositioningStrategy {
+
+    /**
+     * Always captures the text, indexes all elements while parsing,
+     * and keeps the text as is. This gives the fastest lookups.
+     */
+    PositioningStrategy DEFAULT = new PositioningStrategy() {};
+
+    /**
+     * Chooses a plan from the size of the document:
+     * <ul>
+     * <li>Documents under 1M chars use the {@link #DEFAULT} plan.
+     * <li>Larger documents are indexed on the first lookup, so that
+     * documents that are never reported on don't pay for it, unless
+     * reports are {@linkplain ReportDensity#DENSE dense}.
+     * <li>Documents over 16M chars are {@linkplain TextRetention#FROZEN frozen},
+     * or, if no reports are expected, parsed without capturing their
+     * text when their size is known beforehand.
+     * </ul>
+     */
+    PositioningStrategy ADAPTIVE = new PositioningStrategy() {
+
+        private static final int SMALL_DOCUMENT = 1 << 20;
+        private static final int LARGE_DOCUMENT = 1 << 24;
+
+        @Override
+        public CaptureMode captureMode(long lengthHint, ReportDensity density) {
+            return density == ReportDensity.NONE && lengthHint >= LARGE_DOCUMENT ? CaptureMode.NONE
+                                                                                  : CaptureMode.FULL_TEXT;
+        }
+
+        @Override
+        public IndexingMode indexingMode(int contentLength, ReportDensity density) {
+            return contentLength < SMALL_DOCUMENT || density == ReportDensity.DENSE ? IndexingMode.EAGER
+                                                                                    : IndexingMode.LAZY;
+        }
+
+        @Override
+        public TextRetention textRetention(int contentLength, ReportDensity density) {
+            if (contentLength < LARGE_DOCUMENT || density == ReportDensity.DENSE) {
+                return TextRetention.FULL;
+            }
+            return density == ReportDensity.NONE ? TextRetention.NONE : TextRetention.FROZEN;
+        }
+    };
+
+
+    /**
+     * Chooses whether to capture the text of the document before parsing.
+     * Without the text, nodes cannot be positioned, and messages have no
+     * context lines.
+     *
+     * @param lengthHint An estimation of the length of the document,
+     *                   or -1 if it is not known. This may underestimate
+     *                   the real length.
+     * @param density    Expected report density
+     */
+    default CaptureMode captureMode(long lengthHint, ReportDensity density) {
+        return CaptureMode.FULL_TEXT;
+    }
+
+
+    /**
+     * Chooses when positions of the nodes are computed. This
+     * is only called if the text was captured.
+     *
+     * @param contentLength Length of the document
+     * @param density       Expected report density
+     */
+    default IndexingMode indexingMode(int contentLength, ReportDensity density) {
+        return IndexingMode.EAGER;
+    }
+
+
+    /**
+     * Chooses how the text is retained after parsing. This
+     * is only called if the text was captured.
+     *
+     * @param contentLength Length of the document
+     * @param density       Expected report density
+     */
+    default TextRetention textRetention(int contentLength, ReportDensity density) {
+        return TextRetention.FULL;
+    }
+
+
+    /**
+     * How many messages are expected to be reported on a document.
+     */
+    enum ReportDensity {
+        /** Documents are only parsed, only parse errors are reported. */
+        NONE,
+        /** Few messages are reported on some documents. */
+        SPARSE,
+        /** Many messages are reported on most documents. */
+        DENSE
+    }
+
+    /**
+     * Whether the text is captured before parsing.
+     */
+    enum CaptureMode {
+        /** Read the whole text before parsing. */
+        FULL_TEXT,
+        /** Don't capture the text, nodes won't have a position. */
+        NONE
+    }
+
+    /**
+     * When the positions of nodes are computed.
+     */
+    enum IndexingMode {
+        /** Compute positions of all elements while parsing. */
+        EAGER,
+        /** Compute positions of all elements on the first lookup. */
+        LAZY
+    }
+
+    /**
+     * How the text is retained after parsing.
+     */
+    enum TextRetention {
+        /** Keep the text as is. */
+        FULL,
+        /** Keep a {@linkplain PositionedXmlDoc#freeze() frozen} positioner. */
+        FROZEN,
+        /** Drop the text, nodes won't have a position. */
+        NONE
+    }
+}
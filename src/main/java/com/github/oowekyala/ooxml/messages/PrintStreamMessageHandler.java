@@ -24,6 +24,7 @@
 
 package com.github.oowekyala.ooxml.messages;
 
+import java.io.IOException;
 import java.io.PrintStream;
 
 /**
@@ -31,6 +32,12 @@ import java.io.PrintStream;
  */
 public class PrintStreamMessageHandler implements XmlMessageHandler {
 
+    /** Builders that grew larger than this are not reused. */
+    private static final int MAX_REUSED_CAPACITY = 1 << 16;
+
+    /** Messages that are not formatted yet are rendered into this buffer, then written at once. */
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(512));
+
     private final PrintStream err;
 
     public PrintStreamMessageHandler(PrintStream err) {
@@ -43,7 +50,30 @@ public class PrintStreamMessageHandler implements XmlMessageHandler {
         switch (entry.getSeverity()) {
         case WARNING:
         case ERROR:
-            err.println(entry);
+            if (entry.isFormatted()) {
+                err.println(entry.getMessage());
+            } else {
+                printFormatted(entry);
+            }
+        }
+    }
+
+
+    private void printFormatted(XmlException entry) {
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        try {
+            entry.appendMessageTo(sb);
+        } catch (IOException e) {
+            throw new AssertionError("StringBuilder does not throw", e);
+        }
+        // the lock of the stream, so that the message is not split by others
+        synchronized (err) {
+            err.append(sb);
+            err.println();
+        }
+        if (sb.capacity() > MAX_REUSED_CAPACITY) {
+            BUFFER.remove();
         }
     }
 }
@@ -0,0 +1,264 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+
+/**
+ * Forwards messages to another handler, but limits their rate, both
+ * per document ({@linkplain XmlPosition#getSystemId() system ID}) and
+ * per message template (the message where quoted values and numbers
+ * are replaced with placeholders). Each has its own token bucket, a
+ * message is forwarded only if both buckets have a token. The buckets
+ * are updated with a compare-and-set, there are no locks.
+ *
+ * <p>Suppressed messages are counted, and summaries of them are
+ * forwarded as warnings at most once per summary interval, when a
+ * message is accepted after the interval has elapsed, and when the
+ * handler is closed. Buckets that are full and have no suppressed
+ * messages are then removed, so that memory does not grow with the
+ * number of documents.
+ */
+public class RateLimitingMessageHandler implements XmlMessageHandler, AutoCloseable {
+
+    private final XmlMessageHandler delegate;
+    private final long emissionIntervalNanos;
+    private final long burstToleranceNanos;
+    private final long summaryIntervalNanos;
+    private final LongSupplier clock;
+
+    private final ConcurrentMap<String, Bucket> bySource = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Bucket> byTemplate = new ConcurrentHashMap<>();
+    private final AtomicLong nextSummary;
+
+
+    /**
+     * @param delegate         Handler that receives the messages
+     * @param permitsPerSecond Sustained number of messages per second that are
+     *                         forwarded for a given document, and for a given template
+     * @param burst            Number of messages that may be forwarded at once,
+     *                         before the rate applies
+     * @param summaryInterval  Minimum time between two summaries of suppressed messages
+     * @param unit             Unit of the summary interval
+     *
+     * @throws IllegalArgumentException If a number is not positive
+     */
+    public RateLimitingMessageHandler(XmlMessageHandler delegate,
+                                      double permitsPerSecond,
+                                      int burst,
+                                      long summaryInterval,
+                                      TimeUnit unit) {
+        this(delegate, permitsPerSecond, burst, unit.toNanos(summaryInterval), System::nanoTime);
+    }
+
+
+    RateLimitingMessageHandler(XmlMessageHandler delegate,
+                               double permitsPerSecond,
+                               int burst,
+                               long summaryIntervalNanos,
+                               LongSupplier clock) {
+        InternalUtil.assertParamNotNull("delegate", delegate);
+        if (!(permitsPerSecond > 0) || burst <= 0 || summaryIntervalNanos <= 0) {
+            throw new IllegalArgumentException(
+                "Invalid rate limit: " + permitsPerSecond + "/s, burst " + burst + ", interval " + summaryIntervalNanos + "ns");
+        }
+        this.delegate = delegate;
+        this.emissionIntervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.burstToleranceNanos = (burst - 1) * emissionIntervalNanos;
+        this.summaryIntervalNanos = summaryIntervalNanos;
+        this.clock = clock;
+        this.nextSummary = new AtomicLong(clock.getAsLong() + summaryIntervalNanos);
+    }
+
+
+    @Override
+    public boolean isEnabled(XmlSeverity severity, @Nullable String kind) {
+        return delegate.isEnabled(severity, kind);
+    }
+
+
+    @Override
+    public void accept(XmlException entry) {
+        long now = clock.getAsLong();
+
+        String source = sourceKey(entry);
+        String template = MessageUtil.messageTemplate(entry.getSimpleMessage());
+        Bucket sourceBucket = bucket(bySource, source, now, k -> "from this document");
+        Bucket templateBucket = bucket(byTemplate, template, now, k -> "like: " + k);
+
+        if (!templateBucket.tryAcquire(now)) {
+            templateBucket.suppress(entry);
+        } else if (!sourceBucket.tryAcquire(now)) {
+            // the message is not forwarded, so it does not use the token of its template
+            templateBucket.release();
+            sourceBucket.suppress(entry);
+        } else {
+            delegate.accept(entry);
+        }
+
+        long next = nextSummary.get();
+        if (now - next >= 0 && nextSummary.compareAndSet(next, now + summaryIntervalNanos)) {
+            printSummaries(now);
+        }
+    }
+
+
+    /**
+     * Forwards the summaries of the messages that were suppressed
+     * since the last summary.
+     */
+    @Override
+    public void close() {
+        printSummaries(clock.getAsLong());
+    }
+
+
+    private void printSummaries(long now) {
+        printSummaries(bySource, now);
+        printSummaries(byTemplate, now);
+    }
+
+
+    /**
+     * Prints the summaries of the given buckets, and removes the
+     * buckets that are idle, so that the maps do not grow with
+     * the number of documents or templates.
+     */
+    private void printSummaries(ConcurrentMap<String, Bucket> buckets, long now) {
+        buckets.forEach((key, bucket) -> {
+            if (bucket.isIdle(now) && buckets.remove(key, bucket)) {
+                bucket.retire();
+            } else {
+                bucket.printSummary();
+            }
+        });
+    }
+
+
+    /** Number of buckets, for tests. */
+    int getNumBuckets() {
+        return bySource.size() + byTemplate.size();
+    }
+
+
+    private Bucket bucket(ConcurrentMap<String, Bucket> buckets, String key, long now, Function<String, String> description) {
+        Bucket bucket = buckets.get(key);
+        return bucket != null ? bucket : buckets.computeIfAbsent(key, k -> new Bucket(description.apply(k), now));
+    }
+
+
+    private static String sourceKey(XmlException entry) {
+        String systemId = entry.getPosition().getSystemId();
+        return systemId == null ? "" : systemId;
+    }
+
+
+    /**
+     * A token bucket, implemented with the generic cell rate algorithm:
+     * instead of a number of tokens, it stores the time at which the
+     * bucket would be full again.
+     */
+    private final class Bucket {
+
+        private final String description;
+        /** Starts full, the arrival time is never far from the clock, so this does not overflow. */
+        private final AtomicLong theoreticalArrival;
+        private final AtomicLong numSuppressed = new AtomicLong();
+        /** Last suppressed message, whose kind and document are used in the summary. */
+        private volatile XmlException lastSuppressed;
+        /** Set when the bucket is removed from its map. */
+        private volatile boolean retired;
+
+
+        Bucket(String description, long now) {
+            this.description = description;
+            this.theoreticalArrival = new AtomicLong(now);
+        }
+
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long tat = theoreticalArrival.get();
+                long base = tat - now > 0 ? tat : now;
+                if (base - now > burstToleranceNanos) {
+                    return false;
+                }
+                if (theoreticalArrival.compareAndSet(tat, base + emissionIntervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+
+        /** Gives back a token taken with {@link #tryAcquire(long)}. */
+        void release() {
+            theoreticalArrival.addAndGet(-emissionIntervalNanos);
+        }
+
+
+        /** Whether the bucket is full and has no suppressed messages. */
+        boolean isIdle(long now) {
+            return theoreticalArrival.get() - now <= 0 && numSuppressed.get() == 0;
+        }
+
+
+        void suppress(XmlException entry) {
+            lastSuppressed = entry;
+            numSuppressed.incrementAndGet();
+            if (retired) {
+                // the bucket was removed concurrently, the summary thread may not see this count
+                printSummary();
+            }
+        }
+
+
+        void retire() {
+            retired = true;
+            printSummary();
+        }
+
+
+        void printSummary() {
+            long count = numSuppressed.getAndSet(0);
+            if (count == 0) {
+                return;
+            }
+            XmlException last = lastSuppressed;
+            String message = "Suppressed " + count + " " + (count == 1 ? "message " : "messages ") + description;
+            NiceXmlMessageSpec spec =
+                new NiceXmlMessageSpec(XmlPosition.undefinedIn(last.getPosition().getSystemId()), message)
+                    .withKind(last.getKind())
+                    .withSeverity(XmlSeverity.WARNING);
+            delegate.accept(new XmlException(spec, MessageUtil.headerOnly(spec, message, true)));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+
+/**
+ * Formatter compiled from a template, see {@link NiceXmlMessageFormatter#compile(String)}.
+ * The template is parsed once into a sequence of parts, which write
+ * directly to the output when a message is formatted.
+ */
+final class TemplateFormatter implements NiceXmlMessageFormatter {
+
+    private final String template;
+    private final Part[] parts;
+
+
+    private TemplateFormatter(String template, Part[] parts) {
+        this.template = template;
+        this.parts = parts;
+    }
+
+
+    @Override
+    public String formatSpec(OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) {
+        StringBuilder sb = new StringBuilder(template.length() + spec.getSimpleMessage().length() + 64);
+        try {
+            formatTo(sb, ooxml, spec, positioner);
+        } catch (IOException e) {
+            throw new AssertionError("StringBuilder does not throw", e);
+        }
+        return sb.toString();
+    }
+
+
+    @Override
+    public void formatTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+        for (Part part : parts) {
+            part.appendTo(out, ooxml, spec, positioner);
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "TemplateFormatter[" + template + "]";
+    }
+
+
+    static TemplateFormatter compile(String template) {
+        InternalUtil.assertParamNotNull("template", template);
+
+        List<Part> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            if (c != '{' && c != '}') {
+                literal.append(c);
+                i++;
+            } else if (i + 1 < template.length() && template.charAt(i + 1) == c) {
+                // escaped brace
+                literal.append(c);
+                i += 2;
+            } else if (c == '}') {
+                literal.append(c);
+                i++;
+            } else {
+                int end = template.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed '{' at index " + i + " in template: " + template);
+                }
+                if (literal.length() > 0) {
+                    parts.add(new Literal(literal.toString()));
+                    literal.setLength(0);
+                }
+                parts.add(Field.named(template.substring(i + 1, end), template));
+                i = end + 1;
+            }
+        }
+        if (literal.length() > 0) {
+            parts.add(new Literal(literal.toString()));
+        }
+        return new TemplateFormatter(template, parts.toArray(new Part[0]));
+    }
+
+
+    private interface Part {
+
+        void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException;
+    }
+
+
+    private static final class Literal implements Part {
+
+        private final String text;
+
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+
+        @Override
+        public void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+            out.append(text);
+        }
+    }
+
+
+    private enum Field implements Part {
+        SEVERITY("severity") {
+            @Override
+            public void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+                out.append(spec.getSeverity().toString());
+            }
+        },
+        KIND("kind") {
+            @Override
+            public void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+                appendNullable(out, spec.getKind());
+            }
+        },
+        SYSTEM_ID("systemId") {
+            @Override
+            public void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+                appendNullable(out, spec.getPosition().getSystemId());
+            }
+        },
+        LINE("line") {
+            @Override
+            public void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+                if (!spec.getPosition().isUndefined()) {
+                    InternalUtil.appendInt(out, spec.getPosition().getLine());
+                }
+            }
+        },
+        COLUMN("column") {
+            @Override
+            public void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+                if (!spec.getPosition().isUndefined()) {
+                    InternalUtil.appendInt(out, spec.getPosition().getColumn());
+                }
+            }
+        },
+        MESSAGE("message") {
+            @Override
+            public void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+                out.append(spec.getSimpleMessage());
+            }
+        },
+        SNIPPET("snippet") {
+            @Override
+            public void appendTo(Appendable out, OoxmlFacade ooxml, NiceXmlMessageSpec spec, XmlPositioner positioner) throws IOException {
+                @Nullable ContextLines linesAround =
+                    positioner.getLinesAround(spec.getPosition(), ooxml.getNumContextLines());
+                if (linesAround != null) {
+                    linesAround.appendSnippet(out, ooxml, spec);
+                }
+            }
+        };
+
+        private final String fieldName;
+
+
+        Field(String fieldName) {
+            this.fieldName = fieldName;
+        }
+
+
+        private static void appendNullable(Appendable out, @Nullable String value) throws IOException {
+            if (value != null) {
+                out.append(value);
+            }
+        }
+
+
+        static Field named(String name, String template) {
+            for (Field field : values()) {
+                if (field.fieldName.equals(name)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("Unknown field '{" + name + "}' in template: " + template);
+        }
+    }
+}
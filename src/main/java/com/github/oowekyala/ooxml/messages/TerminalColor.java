@@ -50,7 +50,7 @@ public enum TerminalColor {
         this.fgCode = fgCode;
     }
 
-    private String getEscape(boolean bright, boolean background, boolean bold) {
+    String getEscape(boolean bright, boolean background, boolean bold) {
         String escape = ESCAPE + getCode(bright, background);
         return bold ? escape + ";1m" : escape + "m";
     }
@@ -24,45 +24,48 @@
 
 package com.github.oowekyala.ooxml.messages;
 
-import java.io.StringReader;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Scanner;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.github.oowekyala.ooxml.messages.Annots.OneBased;
 import com.github.oowekyala.ooxml.messages.Annots.ZeroBased;
 
 class TextDoc {
 
+    private static final int MAX_CACHED_CONTEXTS = 32;
+
 
     /**
-     * This list has one entry for each line, denoting the start offset of the line.
+     * This array has one entry for each line, denoting the start offset of the line.
      * The start offset of the next line includes the length of the line terminator
      * (1 for \r|\n, 2 for \r\n).
      */
-    private final List<Integer> lineOffsets = new ArrayList<>();
-    private final List<String> lines = new ArrayList<>();
-    private final int sourceCodeLength;
+    private final int[] lineOffsets;
     private final String sourceCode;
 
-    TextDoc(String sourceCode) {
-        sourceCodeLength = sourceCode.length();
-        this.sourceCode = sourceCode;
-
-        try (Scanner scanner = new Scanner(new StringReader(sourceCode))) {
-            int currentGlobalOffset = 0;
-
-            while (scanner.hasNextLine()) {
-                lineOffsets.add(currentGlobalOffset);
-                currentGlobalOffset += getLineLengthWithLineSeparator(scanner);
-            }
+    /**
+     * Context windows that were already requested, keyed by line and
+     * number of lines around. They cache their rendered lines, so that
+     * several messages on the same line render them only once.
+     */
+    private final Map<Long, ContextLines> contextCache = new LinkedHashMap<Long, ContextLines>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ContextLines> eldest) {
+            return size() > MAX_CACHED_CONTEXTS;
         }
+    };
 
-        if (lines.isEmpty()) {
-            // empty doc yields one empty line
-            lines.add("");
-        }
+    TextDoc(String sourceCode) {
+        this(sourceCode, computeLineOffsets(sourceCode));
+    }
+
+    /**
+     * @param lineOffsets Line offsets previously computed for the same text
+     */
+    TextDoc(String sourceCode, int[] lineOffsets) {
+        this.sourceCode = sourceCode;
+        this.lineOffsets = lineOffsets;
     }
 
     /** Returns the full source. */
@@ -70,48 +73,108 @@ class TextDoc {
         return sourceCode;
     }
 
+    /**
+     * Returns the line table. An empty doc yields one empty line.
+     * The array must not be modified.
+     */
+    int[] getLineOffsets() {
+        return lineOffsets;
+    }
+
     ContextLines getLinesAround(@OneBased int line, int numLinesAround) {
+        Long key = ((long) line << 32) | (numLinesAround & 0xFFFFFFFFL);
+        synchronized (contextCache) {
+            ContextLines cached = contextCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ContextLines lines = computeLinesAround(line, numLinesAround);
+        synchronized (contextCache) {
+            contextCache.put(key, lines);
+        }
+        return lines;
+    }
+
+    private ContextLines computeLinesAround(@OneBased int line, int numLinesAround) {
         @ZeroBased int zeroL = line - 1;
         @ZeroBased int firstL = Math.max(0, zeroL - numLinesAround + 1);
-        @ZeroBased int lastL = Math.min(lines.size(), zeroL + numLinesAround);
+        @ZeroBased int lastL = Math.min(lineOffsets.length, zeroL + numLinesAround);
+
+        int[] starts = new int[lastL - firstL];
+        int[] ends = new int[lastL - firstL];
+        for (int i = firstL; i < lastL; i++) {
+            starts[i - firstL] = lineOffsets[i];
+            ends[i - firstL] = getLineEnd(i);
+        }
+        return new ContextLines(sourceCode, starts, ends, firstL + 1, zeroL - firstL);
+    }
 
-        List<String> strings = lines.subList(firstL, lastL);
-        return new ContextLines(strings, firstL + 1, zeroL - firstL);
+    /** Returns the end offset of a line, excluding its line terminator. */
+    private int getLineEnd(@ZeroBased int idx) {
+        int start = lineOffsets[idx];
+        int end = idx + 1 < lineOffsets.length ? lineOffsets[idx + 1] : sourceCode.length();
+        if (end - start >= 2 && sourceCode.startsWith("\r\n", end - 2)) {
+            end -= 2;
+        } else if (end > start && isLineTerminator(sourceCode.charAt(end - 1))) {
+            end--;
+        }
+        return end;
     }
 
     /**
-     * Sums the line length without the line separation and the characters which matched the line separation pattern
-     *
-     * @param scanner the scanner from which to read the line's length
-     *
-     * @return the length of the line with the line separator.
+     * Splits lines like {@link java.util.Scanner#nextLine()} does.
+     * A line terminator at the very end of the text doesn't start a new line.
      */
-    private int getLineLengthWithLineSeparator(final Scanner scanner) {
-        String nline = scanner.nextLine();
-        lines.add(nline);
-        int lineLength = nline.length();
-        final String lineSeparationMatch = scanner.match().group(1);
-
-        if (lineSeparationMatch != null) {
-            lineLength += lineSeparationMatch.length();
+    private static int[] computeLineOffsets(String text) {
+        int[] offsets = new int[16];
+        int numLines = 1; // offsets[0] = 0
+        final int len = text.length();
+
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            if (c == '\r' && i + 1 < len && text.charAt(i + 1) == '\n') {
+                i++;
+            } else if (!isLineTerminator(c)) {
+                continue;
+            }
+
+            if (i + 1 < len) {
+                if (numLines == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, numLines * 2);
+                }
+                offsets[numLines++] = i + 1;
+            }
         }
 
-        return lineLength;
+        return Arrays.copyOf(offsets, numLines);
+    }
+
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085';
     }
 
     public int lineNumberFromOffset(int offset) {
-        int search = Collections.binarySearch(lineOffsets, offset);
+        return lineNumberFromOffset(lineOffsets, offset);
+    }
+
+    public int columnFromOffset(int lineNumber, int offset) {
+        return columnFromOffset(lineOffsets, lineNumber, offset);
+    }
+
+    static int lineNumberFromOffset(int[] lineOffsets, int offset) {
+        int search = Arrays.binarySearch(lineOffsets, offset);
         return search >= 0 ? search + 1 // 1-based line numbers
                            : -(search + 1); // see spec of binarySearch
     }
 
-    public int columnFromOffset(int lineNumber, int offset) {
+    static int columnFromOffset(int[] lineOffsets, int lineNumber, int offset) {
         int lineIndex = lineNumber - 1;
-        if (lineIndex < 0 || lineIndex >= lineOffsets.size()) {
+        if (lineIndex < 0 || lineIndex >= lineOffsets.length) {
             // no line number found...
             return 0;
         }
-        int columnOffset = offset - lineOffsets.get(lineNumber - 1);
+        int columnOffset = offset - lineOffsets[lineIndex];
         return columnOffset + 1; // 1-based column offsets
     }
 
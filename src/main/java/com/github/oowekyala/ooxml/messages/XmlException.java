@@ -24,6 +24,9 @@
 
 package com.github.oowekyala.ooxml.messages;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
 import com.github.oowekyala.ooxml.messages.Annots.Nullable;
 
 /**
@@ -36,6 +39,10 @@ public final class XmlException extends RuntimeException {
     private final @Nullable String kind;
     private final XmlSeverity severity;
 
+    // for lazy rendering, null if the message was given or once it is rendered
+    private transient volatile @Nullable LazyMessage lazyMessage;
+    private volatile String fullMessage;
+
 
     /**
      * Create a new exception from the given spec.
@@ -57,6 +64,94 @@ public final class XmlException extends RuntimeException {
         this.simpleMessage = spec.getSimpleMessage();
         this.kind = spec.getKind();
         this.severity = spec.getSeverity();
+        this.fullMessage = super.getMessage();
+        this.lazyMessage = null;
+    }
+
+
+    /**
+     * Create a new exception from the given spec, whose full message
+     * is formatted with the {@linkplain OoxmlFacade#getFormatter() formatter}
+     * of the facade the first time it is requested. Handlers that never
+     * display the message then never pay for formatting it. The exception
+     * keeps a reference to the positioner until then, and to the formatting
+     * settings of the facade as they are now.
+     *
+     * @param spec       A non-null spec
+     * @param ooxml      Facade, whose formatting settings are captured now
+     * @param positioner Positioner to use to format the message
+     * @throws NullPointerException If a parameter is null
+     */
+    public XmlException(NiceXmlMessageSpec spec,
+                        OoxmlFacade ooxml,
+                        XmlPositioner positioner) {
+        this(spec, ooxml, positioner, true);
+    }
+
+
+    /**
+     * Like {@link #XmlException(NiceXmlMessageSpec, OoxmlFacade, XmlPositioner)},
+     * but the stack trace may be disabled.
+     */
+    XmlException(NiceXmlMessageSpec spec,
+                 OoxmlFacade ooxml,
+                 XmlPositioner positioner,
+                 boolean writableStackTrace) {
+
+        super(null, spec.getCause(), true, writableStackTrace);
+
+        InternalUtil.assertParamNotNull("ooxml", ooxml);
+        InternalUtil.assertParamNotNull("positioner", positioner);
+        assert spec.getSeverity() != null;
+        assert spec.getPosition() != null;
+
+        this.position = spec.getPosition();
+        this.simpleMessage = spec.getSimpleMessage();
+        this.kind = spec.getKind();
+        this.severity = spec.getSeverity();
+        this.lazyMessage = new LazyMessage(spec, ooxml.getRenderingSettings(), positioner);
+    }
+
+
+    /**
+     * Returns the full message, which includes context lines
+     * if the formatter adds them. If the message is formatted
+     * lazily, this exception releases the positioner afterwards.
+     */
+    @Override
+    public String getMessage() {
+        String message = fullMessage;
+        if (message == null) {
+            LazyMessage lazy = lazyMessage;
+            if (lazy == null) {
+                // formatted concurrently, the message is written before this is cleared
+                return fullMessage;
+            }
+            // several threads may format it, but the result is the same
+            message = lazy.format();
+            fullMessage = message;
+            lazyMessage = null;
+        }
+        return message;
+    }
+
+
+    /**
+     * Writes the {@linkplain #getMessage() full message} to the given
+     * appendable. If the message has not been formatted yet, it is
+     * streamed with {@link NiceXmlMessageFormatter#formatTo(Appendable, OoxmlFacade, NiceXmlMessageSpec, XmlPositioner)}
+     * and not kept in this exception.
+     *
+     * @param out Appendable to write to
+     * @throws IOException If the appendable throws
+     */
+    public void appendMessageTo(Appendable out) throws IOException {
+        LazyMessage lazy = lazyMessage;
+        if (lazy != null) {
+            lazy.formatTo(out);
+        } else {
+            out.append(getMessage());
+        }
     }
 
 
@@ -92,10 +187,70 @@ public final class XmlException extends RuntimeException {
         return severity;
     }
 
+    /**
+     * Returns whether the full message is already a string, ie
+     * {@link #getMessage()} does not format it.
+     */
+    boolean isFormatted() {
+        return lazyMessage == null;
+    }
+
+    /**
+     * Returns the facade used to format the message, or null if the
+     * message was given to the constructor.
+     */
+    @Nullable OoxmlFacade getFacade() {
+        LazyMessage lazy = lazyMessage;
+        return lazy == null ? null : lazy.ooxml;
+    }
+
+
+    /**
+     * Returns the positioner used to format the message, or null if
+     * the message was given to the constructor or is already formatted.
+     */
+    @Nullable XmlPositioner getPositioner() {
+        LazyMessage lazy = lazyMessage;
+        return lazy == null ? null : lazy.positioner;
+    }
+
     @Override
     public String toString() {
         return getMessage();
     }
 
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // the positioner is not serialized, format the message now
+        getMessage();
+        out.defaultWriteObject();
+    }
+
+
+    /** What is needed to format the message lazily. */
+    private static final class LazyMessage {
+
+        private final NiceXmlMessageSpec spec;
+        private final OoxmlFacade ooxml;
+        private final XmlPositioner positioner;
+
+
+        LazyMessage(NiceXmlMessageSpec spec, OoxmlFacade ooxml, XmlPositioner positioner) {
+            this.spec = spec;
+            this.ooxml = ooxml;
+            this.positioner = positioner;
+        }
+
+
+        String format() {
+            return ooxml.getFormatter().formatSpec(ooxml, spec, positioner);
+        }
+
+
+        void formatTo(Appendable out) throws IOException {
+            ooxml.getFormatter().formatTo(out, ooxml, spec, positioner);
+        }
+    }
+
+
 }
@@ -24,6 +24,8 @@
 
 package com.github.oowekyala.ooxml.messages;
 
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+
 /**
  * Handles XML messages, for example forwarding them to a print stream.
  */
@@ -37,7 +39,17 @@ public interface XmlMessageHandler {
     /**
      * Ignores all messages.
      */
-    XmlMessageHandler NOOP = (ex) -> { /* do nothing*/};
+    XmlMessageHandler NOOP = new XmlMessageHandler() {
+        @Override
+        public void accept(XmlException entry) {
+            // do nothing
+        }
+
+        @Override
+        public boolean isEnabled(XmlSeverity severity, @Nullable String kind) {
+            return false;
+        }
+    };
 
 
     /**
@@ -48,4 +60,20 @@ public interface XmlMessageHandler {
      */
     void accept(XmlException entry);
 
+
+    /**
+     * Returns whether messages with the given severity and kind
+     * would be handled by this handler. If this returns false, the
+     * library does not create such messages, unless they are thrown,
+     * which spares computing their position and formatting them.
+     * Callers of {@link #accept(XmlException) accept} should check this first.
+     * The default returns true.
+     *
+     * @param severity Severity of the message
+     * @param kind     Kind of the message, if any
+     */
+    default boolean isEnabled(XmlSeverity severity, @Nullable String kind) {
+        return true;
+    }
+
 }
@@ -50,6 +50,18 @@ public interface XmlMessageReporter<M> extends AutoCloseable {
     M at(@Nullable Node node);
 
 
+    /**
+     * Returns whether messages of the given severity are handled by
+     * this reporter. Validation code may check this before computing
+     * the arguments of a message. The default returns true.
+     *
+     * @param severity Severity of a message
+     */
+    default boolean isEnabled(XmlSeverity severity) {
+        return true;
+    }
+
+
     @Override
     void close();
 }
@@ -26,16 +26,43 @@ package com.github.oowekyala.ooxml.messages;
 
 import org.w3c.dom.Node;
 
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+
 /**
  * Base implementation of {@link XmlMessageReporter}.
  */
 public abstract class XmlMessageReporterBase<M> implements XmlMessageReporter<M> {
 
+    /** Whether a subclass overrides one of the create2ndStage methods. */
+    private static final ClassValue<Boolean> OVERRIDES_2ND_STAGE = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != XmlMessageReporterBase.class; c = c.getSuperclass()) {
+                if (declares(c, Node.class) || declares(c, XmlPosition.class)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean declares(Class<?> c, Class<?> firstParam) {
+            try {
+                c.getDeclaredMethod("create2ndStage", firstParam, XmlPositioner.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
     protected final XmlPositioner positioner;
     protected final OoxmlFacade ooxml;
 
 
     protected XmlMessageReporterBase(OoxmlFacade ooxml, XmlPositioner positioner) {
+        if (!OVERRIDES_2ND_STAGE.get(getClass())) {
+            throw new IllegalStateException(getClass().getName() + " should override one of the create2ndStage methods");
+        }
         this.positioner = positioner;
         this.ooxml = ooxml;
     }
@@ -46,10 +73,89 @@ public abstract class XmlMessageReporterBase<M> implements XmlMessageReporter<M>
      * this instead of {@link #at(Node)} because maybe in the future
      * other {@link #at(Node)} overloads will be provided.
      *
+     * <p>The default computes the position of the node, and calls
+     * {@link #create2ndStage(XmlPosition, XmlPositioner)}. Override this
+     * to compute the position only when a message is actually reported,
+     * with {@link XmlPositioner#startPositionOf(Node) positioner.startPositionOf(node)}.
+     * Then {@link #at(Node) at} costs nothing if no message is reported.
+     *
+     * @param node       Node passed to {@link #at(Node)}
+     * @param positioner Positioner
+     */
+    protected M create2ndStage(@Nullable Node node, XmlPositioner positioner) {
+        return create2ndStage(positioner.startPositionOf(node), positioner);
+    }
+
+
+    /**
+     * Creates the object returned by {@link #at(Node)}, from the position
+     * of the node. This is only called by the default implementation of
+     * {@link #create2ndStage(Node, XmlPositioner)}. A subclass must override
+     * one of them, this is checked when the reporter is constructed.
+     *
      * @param position   Position of the message
      * @param positioner Positioner
+     *
+     * @deprecated Override {@link #create2ndStage(Node, XmlPositioner)},
+     *     which does not compute the position when no message is reported
      */
-    protected abstract M create2ndStage(XmlPosition position, XmlPositioner positioner);
+    @Deprecated
+    protected M create2ndStage(XmlPosition position, XmlPositioner positioner) {
+        // unreachable, see the constructor
+        throw new AbstractMethodError(getClass().getName() + ".create2ndStage");
+    }
+
+
+    /**
+     * Creates an exception for a message reported through this reporter.
+     * Its full message is formatted lazily, and it has no stack trace if
+     * the facade is {@linkplain OoxmlFacade#withStacklessDiagnostics(boolean) configured so}.
+     * Exceptions that are thrown should rather use one of the constructors
+     * of {@link XmlException}.
+     *
+     * @param spec       Message spec
+     * @param positioner Positioner used to format the message
+     */
+    protected XmlException createEntry(NiceXmlMessageSpec spec, XmlPositioner positioner) {
+        return MessageUtil.createEntry(ooxml, positioner, spec, false);
+    }
+
+
+    /**
+     * Returns whether a message with the given severity and kind would
+     * be handled by the {@linkplain OoxmlFacade#getPrinter() printer}.
+     * Second stages should check this before they format a message or
+     * {@linkplain #createEntry(NiceXmlMessageSpec, XmlPositioner) create an entry}.
+     *
+     * @see XmlMessageHandler#isEnabled(XmlSeverity, String)
+     */
+    protected boolean isEnabled(XmlSeverity severity, @Nullable String kind) {
+        return ooxml.getPrinter().isEnabled(severity, kind);
+    }
+
+
+    /**
+     * Returns whether the {@linkplain OoxmlFacade#getPrinter() printer}
+     * handles messages of the given severity, whatever their kind.
+     */
+    @Override
+    public boolean isEnabled(XmlSeverity severity) {
+        return isEnabled(severity, null);
+    }
+
+
+    /**
+     * Formats a message with a {@link java.text.MessageFormat}, like
+     * {@link java.text.MessageFormat#format(String, Object...)}. Parsed
+     * patterns are cached for all reporters, so that reporting many
+     * messages with the same pattern does not parse it every time.
+     *
+     * @param pattern    A {@link java.text.MessageFormat} pattern
+     * @param formatArgs Format arguments
+     */
+    protected String formatMessage(String pattern, Object... formatArgs) {
+        return MessageUtil.formatMessage(pattern, formatArgs);
+    }
 
 
     /**
@@ -61,11 +167,8 @@ public abstract class XmlMessageReporterBase<M> implements XmlMessageReporter<M>
 
 
     @Override
-    public M at(Node node) {
-        return create2ndStage(
-            positioner.startPositionOf(node),
-            positioner
-        );
+    public M at(@Nullable Node node) {
+        return create2ndStage(node, positioner);
     }
 
 
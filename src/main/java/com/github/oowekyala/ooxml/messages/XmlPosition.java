@@ -28,7 +28,9 @@ import java.util.Objects;
 
 import org.xml.sax.Locator;
 
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
 import com.github.oowekyala.ooxml.messages.Annots.OneBased;
+import com.github.oowekyala.ooxml.messages.Annots.ZeroBased;
 
 
 /**
@@ -42,6 +44,7 @@ public final class XmlPosition {
     private final int line;
     private final int column;
     private final int length;
+    private final @ZeroBased int startOffset;
     private final String systemId;
 
     private XmlPosition(int line, int column) {
@@ -53,10 +56,19 @@ public final class XmlPosition {
     }
 
     public XmlPosition(String systemId, @OneBased int line, @OneBased int column, int length) {
+        this(systemId, line, column, length, -1);
+    }
+
+    /**
+     * @param startOffset Offset of the start of the range in the text
+     *                    of the document, or -1 if it is unknown
+     */
+    public XmlPosition(String systemId, @OneBased int line, @OneBased int column, int length, @ZeroBased int startOffset) {
         this.systemId = systemId;
         this.line = line;
         this.column = column;
         this.length = length;
+        this.startOffset = startOffset;
     }
 
     /**
@@ -82,6 +94,26 @@ public final class XmlPosition {
         return length;
     }
 
+    /**
+     * Returns the offset of the start of the text range in the text
+     * of the document, counted in chars. This is -1 if it is unknown,
+     * which is the case for undefined positions, and for positions
+     * reported by the XML parser. This allows slicing the source text
+     * without going through line numbers.
+     */
+    public @ZeroBased int getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * Returns the offset of the end of the text range (exclusive), ie
+     * the {@linkplain #getStartOffset() start offset} plus the {@linkplain #getLength() length}.
+     * This is -1 if the start offset is unknown.
+     */
+    public @ZeroBased int getEndOffset() {
+        return startOffset < 0 ? -1 : startOffset + length;
+    }
+
     /**
      * The system ID of the file where the node is located.
      *
@@ -125,13 +157,13 @@ public final class XmlPosition {
 
     /**
      * Returns an undefined position in a document identified by the
-     * given system ID.
+     * given system ID. Positioners create one per document and share it.
      *
      * @param systemId System ID
      *
      * @return An undefined position
      */
-    public static XmlPosition undefinedIn(String systemId) {
-        return new XmlPosition(systemId, -1, -1);
+    public static XmlPosition undefinedIn(@Nullable String systemId) {
+        return systemId == null ? UNDEFINED : new XmlPosition(systemId, -1, -1);
     }
 }
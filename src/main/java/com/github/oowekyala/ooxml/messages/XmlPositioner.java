@@ -43,6 +43,13 @@ public interface XmlPositioner {
      * given XML node. If no position is available, or if the parameter
      * is null, returns {@linkplain XmlPosition#isUndefined() an undefined position}.
      *
+     * <p>Nodes copied with {@link Node#cloneNode(boolean)} or
+     * {@link org.w3c.dom.Document#importNode(Node, boolean)}, or moved with
+     * {@link org.w3c.dom.Document#adoptNode(Node)}, keep the position
+     * of the node they were copied from, provided that position had
+     * been computed before the copy. The positions of elements are always
+     * computed when the document is parsed.
+     *
      * @param node XML node
      * @return A position
      */
@@ -70,6 +77,7 @@ public interface XmlPositioner {
      * @return A new positioner
      */
     static XmlPositioner noPositioner(@Nullable String systemId) {
+        XmlPosition undefined = XmlPosition.undefinedIn(systemId);
         return new XmlPositioner() {
 
             @Override
@@ -79,7 +87,7 @@ public interface XmlPositioner {
 
             @Override
             public XmlPosition startPositionOf(@Nullable Node node) {
-                return XmlPosition.undefinedIn(systemId);
+                return undefined;
             }
 
 
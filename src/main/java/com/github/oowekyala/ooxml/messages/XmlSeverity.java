@@ -31,27 +31,19 @@ public enum XmlSeverity {
     /**
      * A warning, with a yellow color.
      */
-    WARNING("Warning") {
-        @Override
-        public String withColor(String toColor) {
-            return TerminalColor.COL_YELLOW.apply(toColor, false, false, false);
-        }
-    },
+    WARNING("Warning", TerminalColor.COL_YELLOW),
     /**
      * An error, with a red color.
      */
-    ERROR("Error") {
-        @Override
-        public String withColor(String toColor) {
-            return TerminalColor.COL_RED.apply(toColor, false, false, false);
-        }
-    };
+    ERROR("Error", TerminalColor.COL_RED);
 
     private final String displayName;
+    private final TerminalColor color;
 
 
-    XmlSeverity(String displayName) {
+    XmlSeverity(String displayName, TerminalColor color) {
         this.displayName = displayName;
+        this.color = color;
     }
 
 
@@ -64,7 +56,13 @@ public enum XmlSeverity {
      * with {@value TerminalColor#ANSI_RESET}
      */
     public String withColor(String toColor) {
-        return toColor;
+        return color.apply(toColor, false, false, false);
+    }
+
+
+    /** Color used by {@link #withColor(String)}. */
+    TerminalColor getColor() {
+        return color;
     }
 
 
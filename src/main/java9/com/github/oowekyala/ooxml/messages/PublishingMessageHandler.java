@@ -0,0 +1,296 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.github.oowekyala.ooxml.messages;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.oowekyala.ooxml.messages.Annots.Nullable;
+
+/**
+ * Publishes the messages it accepts to a {@link Flow.Subscriber}, for
+ * example the messages of a parse, or of a batch of parses. The
+ * publisher completes when the handler is {@linkplain #close() closed}.
+ *
+ * <p>Subscriber demand is honoured: messages are buffered up to a
+ * fixed capacity, after which {@link #accept(XmlException) accept}
+ * blocks until the subscriber requests more. A slow subscriber therefore
+ * throttles the parse. Messages accepted before a subscriber arrives are
+ * all buffered, so that a parse may start before the subscription.
+ * Once the subscription is cancelled, messages are
+ * {@linkplain #isEnabled(XmlSeverity, String) disabled} and dropped.
+ *
+ * <p>The subscriber may call {@link #accept(XmlException) accept} from
+ * its own {@link Flow.Subscriber#onNext(Object) onNext}: such calls
+ * never block, since the subscriber cannot request more until they return.
+ *
+ * <p>If the subscriber throws, its subscription is cancelled, and the
+ * exception propagates to the thread that delivered the signal.
+ *
+ * <p>Only one subscriber is supported, later ones receive an error.
+ * This class is only available on Java 9 and above.
+ */
+public class PublishingMessageHandler implements XmlMessageHandler, Flow.Publisher<XmlException>, AutoCloseable {
+
+    private final Object lock = new Object();
+    private final int capacity;
+
+    // guarded by lock
+    private final ArrayDeque<XmlException> buffer;
+    private long demand;
+    private boolean cancelled;
+    private boolean closed;
+    private boolean terminated;
+    private @Nullable Throwable error;
+
+    private volatile Flow.@Nullable Subscriber<? super XmlException> subscriber;
+    private boolean subscribed; // guarded by lock
+    /** Number of pending drain requests, only the thread that increments it from zero emits. */
+    private final AtomicInteger wip = new AtomicInteger();
+    /** Thread that is emitting signals, if any. */
+    private volatile @Nullable Thread emitter;
+
+
+    /**
+     * Create a handler that buffers at most 256 messages once subscribed.
+     */
+    public PublishingMessageHandler() {
+        this(256);
+    }
+
+
+    /**
+     * @param capacity Maximum number of messages that are buffered
+     *                 while the subscriber has no demand, except before
+     *                 it subscribes
+     *
+     * @throws IllegalArgumentException If the capacity is not positive
+     */
+    public PublishingMessageHandler(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity should be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.buffer = new ArrayDeque<>(Math.min(capacity, 256));
+    }
+
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super XmlException> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        boolean first;
+        synchronized (lock) {
+            first = !subscribed;
+            subscribed = true;
+        }
+        if (!first) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    // nothing to deliver
+                }
+
+                @Override
+                public void cancel() {
+                    // nothing to cancel
+                }
+            });
+            subscriber.onError(new IllegalStateException("This publisher supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new MySubscription());
+        // only published after onSubscribe, so that no other signal precedes it
+        this.subscriber = subscriber;
+        drain();
+    }
+
+
+    /**
+     * Returns false once the subscription has been cancelled.
+     */
+    @Override
+    public boolean isEnabled(XmlSeverity severity, @Nullable String kind) {
+        synchronized (lock) {
+            return !cancelled;
+        }
+    }
+
+
+    /**
+     * Publishes the message, blocking while the buffer is full and
+     * a subscriber is there to empty it. If the thread is interrupted
+     * while waiting, the message is dropped and the interrupt flag is
+     * restored.
+     *
+     * @throws IllegalStateException If the handler is closed
+     */
+    @Override
+    public void accept(XmlException entry) {
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Handler is closed");
+            }
+            boolean reentrant = emitter == Thread.currentThread();
+            while (subscribed && !reentrant && !cancelled && buffer.size() >= capacity) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (cancelled) {
+                return;
+            }
+            buffer.add(entry);
+        }
+        drain();
+    }
+
+
+    /**
+     * Completes the publisher. The subscriber still receives the buffered
+     * messages, then {@link Flow.Subscriber#onComplete() onComplete}.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+        }
+        drain();
+    }
+
+
+    /**
+     * Emits as many buffered messages as there is demand for, and
+     * completes if possible. Signals are never emitted concurrently.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        boolean done = false;
+        try {
+            do {
+                Flow.Subscriber<? super XmlException> s = subscriber;
+                if (s != null) {
+                    emitter = Thread.currentThread();
+                    try {
+                        emit(s);
+                    } finally {
+                        emitter = null;
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+            done = true;
+        } finally {
+            if (!done) {
+                // the subscriber threw, it is cancelled, and the
+                // exception propagates to the caller. Producers
+                // waiting for demand are released.
+                cancel();
+                wip.set(0);
+            }
+        }
+    }
+
+
+    private void emit(Flow.Subscriber<? super XmlException> s) {
+        while (true) {
+            XmlException next;
+            boolean complete = false;
+            Throwable failure = null;
+            synchronized (lock) {
+                if (terminated) {
+                    return;
+                }
+                if (error != null) {
+                    next = null;
+                    failure = error;
+                    terminated = true;
+                } else if (demand > 0 && !buffer.isEmpty()) {
+                    next = buffer.poll();
+                    demand--;
+                    lock.notifyAll();
+                } else if (closed && buffer.isEmpty()) {
+                    next = null;
+                    complete = true;
+                    terminated = true;
+                } else {
+                    return;
+                }
+            }
+            if (failure != null) {
+                s.onError(failure);
+                return;
+            } else if (complete) {
+                s.onComplete();
+                return;
+            }
+            s.onNext(next);
+        }
+    }
+
+
+    private void cancel() {
+        synchronized (lock) {
+            cancelled = true;
+            terminated = true;
+            buffer.clear();
+            lock.notifyAll();
+        }
+    }
+
+
+    private final class MySubscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if (n <= 0) {
+                    // the subscription is cancelled, but the error is still signalled
+                    error = new IllegalArgumentException("Non-positive request: " + n);
+                    cancelled = true;
+                    buffer.clear();
+                    lock.notifyAll();
+                } else {
+                    long d = demand + n;
+                    demand = d < 0 ? Long.MAX_VALUE : d;
+                }
+            }
+            drain();
+        }
+
+
+        @Override
+        public void cancel() {
+            PublishingMessageHandler.this.cancel();
+        }
+    }
+}
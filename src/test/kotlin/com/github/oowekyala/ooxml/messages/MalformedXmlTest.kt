@@ -161,4 +161,40 @@ $HEADER
         printer.err.shouldContainExactly(ex)
     }
 
+    test("Test message is formatted lazily") {
+
+        var numFormatted = 0
+        val ooxml = OoxmlFacade().withFormatter { ooxml, spec, positioner ->
+            numFormatted++
+            NiceXmlMessageFormatter.FULL_MESSAGE.formatSpec(ooxml, spec, positioner)
+        }
+
+        val ex = shouldThrow<XmlException> {
+            ooxml.withPrinter(XmlMessageHandler.NOOP).parse(domBuilder(), InputSource("<list>".reader()))
+        }
+
+        numFormatted shouldBe 0
+        ex.simpleMessage shouldBe "XML document structures must start and end within the same entity."
+        numFormatted shouldBe 0
+
+        ex.message shouldBe ex.toString()
+        numFormatted shouldBe 1
+    }
+
+    test("Test message is streamed to a print stream") {
+
+        val bytes = java.io.ByteArrayOutputStream()
+        val ex = shouldThrow<XmlException> {
+            "<list>\n<a/>".parseStr(TestMessagePrinter())
+        }
+
+        val streamed = StringBuilder()
+        ex.appendMessageTo(streamed)
+
+        PrintStreamMessageHandler(java.io.PrintStream(bytes, true, "UTF-8")).accept(ex)
+
+        streamed.toString() shouldBe ex.message
+        bytes.toString("UTF-8") shouldBe ex.message + System.lineSeparator()
+    }
+
 })
@@ -0,0 +1,401 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.github.oowekyala.ooxml.messages
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.FunSpec
+import io.kotest.matchers.collections.shouldHaveSize
+import io.kotest.matchers.ints.shouldBeLessThanOrEqual
+import io.kotest.matchers.longs.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.LongSupplier
+import kotlin.concurrent.thread
+
+fun message(text: String?, severity: XmlSeverity = XmlSeverity.ERROR, systemId: String? = null, line: Int = -1) =
+    XmlException(
+        NiceXmlMessageSpec(XmlPosition(systemId, line, if (line < 0) -1 else 1), text).withSeverity(severity),
+        null
+    )
+
+class MessageHandlersTest : FunSpec({
+
+    test("Test async handler delivers all messages in order") {
+
+        val received = Collections.synchronizedList(mutableListOf<String>())
+        val handler = AsyncMessageHandler({ received += it.simpleMessage }, 8, AsyncMessageHandler.Overflow.BLOCK)
+
+        (0 until 4).map { t ->
+            thread {
+                repeat(500) { handler.accept(message("$t:$it")) }
+            }
+        }.forEach { it.join() }
+
+        handler.close()
+
+        received shouldHaveSize 2000
+        for (t in 0 until 4) {
+            received.filter { it.startsWith("$t:") } shouldBe (0 until 500).map { "$t:$it" }
+        }
+        handler.numDropped shouldBe 0
+    }
+
+    test("Test async handler drops messages when full") {
+
+        val latch = CountDownLatch(1)
+        val received = Collections.synchronizedList(mutableListOf<String>())
+        val handler = AsyncMessageHandler({
+            latch.await()
+            received += it.simpleMessage
+        }, 4, AsyncMessageHandler.Overflow.DROP)
+
+        repeat(100) { handler.accept(message("$it")) }
+        latch.countDown()
+        handler.close()
+
+        handler.numDropped shouldBeGreaterThan 0
+        received.size.toLong() + handler.numDropped shouldBe 100
+        received.size shouldBeLessThanOrEqual 5
+    }
+
+    test("Test async handler rethrows failures on close") {
+
+        val handler = AsyncMessageHandler { throw IllegalStateException(it.simpleMessage) }
+
+        handler.accept(message("oops"))
+
+        shouldThrow<IllegalStateException> { handler.close() }.message shouldBe "oops"
+    }
+
+    test("Test async handler loses no message when closed concurrently") {
+
+        repeat(20) {
+            val numDelivered = AtomicInteger()
+            val numRejected = AtomicInteger()
+            val numInDelegate = AtomicInteger()
+            val handler = AsyncMessageHandler({
+                numInDelegate.incrementAndGet() shouldBe 1
+                numDelivered.incrementAndGet()
+                numInDelegate.decrementAndGet()
+            }, 8, AsyncMessageHandler.Overflow.BLOCK)
+            val start = CountDownLatch(1)
+
+            val producers = (1..4).map {
+                thread {
+                    start.await()
+                    repeat(500) {
+                        try {
+                            handler.accept(message("m"))
+                        } catch (e: IllegalStateException) {
+                            numRejected.incrementAndGet()
+                        }
+                    }
+                }
+            }
+            start.countDown()
+            handler.close()
+            val delivered = numDelivered.get()
+            producers.forEach { it.join() }
+
+            // nothing is delivered after close, and nothing is lost
+            numDelivered.get() shouldBe delivered
+            delivered + numRejected.get() shouldBe 2000
+        }
+    }
+
+    test("Test async handler with a capacity of 1") {
+
+        val received = Collections.synchronizedList(mutableListOf<String>())
+        val handler = AsyncMessageHandler({ received += it.simpleMessage }, 1, AsyncMessageHandler.Overflow.BLOCK)
+
+        (0 until 2).map { t ->
+            thread {
+                repeat(100) { handler.accept(message("$t:$it")) }
+            }
+        }.forEach { it.join() }
+        handler.close()
+
+        received shouldHaveSize 200
+        for (t in 0 until 2) {
+            received.filter { it.startsWith("$t:") } shouldBe (0 until 100).map { "$t:$it" }
+        }
+    }
+
+    test("Test concurrent accumulating handler has a deterministic order") {
+
+        fun run(): List<String> {
+            val printed = mutableListOf<String>()
+            val handler = object : ConcurrentAccumulatingMessageHandler({ printed += it.simpleMessage + "@" + it.position.line }, XmlSeverity.WARNING) {
+                override fun printSummaryLine(kind: String?, severity: XmlSeverity, message: String) {
+                    printed += message
+                }
+            }
+
+            (0 until 4).map { t ->
+                thread {
+                    repeat(250) { handler.accept(message("m${it % 5}", line = it + 1, systemId = "/f$t")) }
+                }
+            }.forEach { it.join() }
+
+            handler.close()
+            return printed
+        }
+
+        val first = run()
+        first shouldHaveSize 1000
+        first.take(3) shouldBe listOf("m0@1", "m0@6", "m0@11")
+        run() shouldBe first
+    }
+
+    test("Test accumulating handler retains a bounded number of entries") {
+
+        val printed = mutableListOf<String>()
+        val handler = object : AccumulatingMessageHandler({ printed += it.simpleMessage + "@" + it.position.line }, XmlSeverity.WARNING, 2, 3) {
+            override fun printSummaryLine(kind: String?, severity: XmlSeverity, message: String) {
+                printed += message
+            }
+        }
+
+        repeat(1000) { handler.accept(message("m", line = it + 1)) }
+        handler.accept(message("other", XmlSeverity.WARNING))
+
+        handler.close(XmlSeverity.WARNING, XmlSeverity.ERROR)
+
+        // warnings come first, and are summarized
+        printed shouldHaveSize 7
+        printed.take(3) shouldBe listOf("other@-1", "m@1", "m@2")
+        printed.drop(3).take(3).forEach { it.startsWith("m@") shouldBe true }
+        printed[6] shouldBe "There were 995 more error like the previous ones"
+    }
+
+    test("Test concurrent accumulating handler retains a bounded number of entries") {
+
+        val printed = mutableListOf<String>()
+        val handler = object : ConcurrentAccumulatingMessageHandler({ printed += it.simpleMessage }, XmlSeverity.WARNING, 2, 3) {
+            override fun printSummaryLine(kind: String?, severity: XmlSeverity, message: String) {
+                printed += message
+            }
+        }
+
+        (1..4).map { t ->
+            thread { repeat(1000) { handler.accept(message("m", systemId = "/$t.xml", line = it + 1)) } }
+        }.forEach { it.join() }
+
+        handler.close(XmlSeverity.WARNING, XmlSeverity.ERROR)
+
+        printed shouldHaveSize 6
+        printed.last() shouldBe "There were 3995 more error like the previous ones"
+    }
+
+    test("Test concurrent accumulating handler keeps the same exemplars however work is split") {
+
+        fun run(numThreads: Int): List<String?> {
+            val printed = mutableListOf<String?>()
+            val handler = object : ConcurrentAccumulatingMessageHandler({ printed += "${it.simpleMessage}@${it.position.line}" }, XmlSeverity.WARNING, 3, 0) {
+                override fun printSummaryLine(kind: String?, severity: XmlSeverity, message: String) {
+                    printed += message
+                }
+            }
+            // lines in reverse, so that the first reported are not the exemplars
+            val lines = (100 downTo 1).toList()
+            lines.chunked(100 / numThreads).map { chunk ->
+                thread { chunk.forEach { handler.accept(message(if (it % 2 == 0) "m" else null, line = it)) } }
+            }.forEach { it.join() }
+
+            handler.close(XmlSeverity.WARNING, XmlSeverity.ERROR)
+            return printed
+        }
+
+        val single = run(1)
+        single shouldBe listOf(
+            "null@1", "null@3", "null@5", "There were 47 more error like the previous ones",
+            "m@2", "m@4", "m@6", "There were 47 more error like the previous ones"
+        )
+        run(4) shouldBe single
+        run(10) shouldBe single
+    }
+
+    test("Test cached message formats are used concurrently") {
+
+        val failures = AtomicInteger()
+        (0 until 4).map { t ->
+            thread {
+                for (i in 0 until 1000) {
+                    // more patterns than the cache holds
+                    val pattern = "Pattern ${i % 300}: {0} of {1}"
+                    if (MessageUtil.formatMessage(pattern, arrayOf("$t", i)) != "Pattern ${i % 300}: $t of $i") {
+                        failures.incrementAndGet()
+                    }
+                }
+            }
+        }.forEach { it.join() }
+
+        failures.get() shouldBe 0
+    }
+
+    test("Test message templates") {
+
+        MessageUtil.messageTemplate("cvc-datatype-valid.1.2.1: 'abc' is not a valid value for 'integer'.") shouldBe
+            "cvc-datatype-valid.1.2.1: '*' is not a valid value for '*'."
+        MessageUtil.messageTemplate("Value \"12\" has length 12.5, it doesn't fit in 3 bytes") shouldBe
+            "Value \"*\" has length #, it doesn't fit in # bytes"
+        MessageUtil.messageTemplate("element h1 at x2") shouldBe "element h1 at x2"
+        MessageUtil.messageTemplate(null) shouldBe ""
+    }
+
+    test("Test handlers accept messages without a simple message") {
+
+        val printed = mutableListOf<String?>()
+        val accumulating = object : AccumulatingMessageHandler({ printed += it.simpleMessage }, XmlSeverity.WARNING) {
+            override fun printSummaryLine(kind: String?, severity: XmlSeverity, message: String) {
+                printed += message
+            }
+        }
+        val rateLimiting = RateLimitingMessageHandler(accumulating, 1.0, 1, 1, LongSupplier { 0 })
+        val metrics = MetricsMessageHandler(rateLimiting, LongSupplier { 0 })
+
+        metrics.accept(message(null))
+        metrics.accept(message(null))
+        rateLimiting.close()
+        accumulating.close(XmlSeverity.WARNING, XmlSeverity.ERROR)
+
+        metrics.snapshot().totalCount shouldBe 2
+        printed.contains(null) shouldBe true
+    }
+
+    test("Test accumulating handler groups by message template") {
+
+        val printed = mutableListOf<String>()
+        val handler = object : AccumulatingMessageHandler({ printed += it.simpleMessage }, XmlSeverity.WARNING) {
+            override fun printSummaryLine(kind: String?, severity: XmlSeverity, message: String) {
+                printed += message
+            }
+        }
+
+        handler.accept(message("cvc-datatype-valid.1.2.1: 'abc' is not a valid value for 'integer'.", XmlSeverity.WARNING))
+        handler.accept(message("cvc-datatype-valid.1.2.1: '1.5' is not a valid value for 'integer'.", XmlSeverity.WARNING))
+
+        handler.close(XmlSeverity.WARNING, XmlSeverity.ERROR)
+
+        printed shouldBe listOf(
+            "There were 2 warning like the following one:",
+            "cvc-datatype-valid.1.2.1: 'abc' is not a valid value for 'integer'."
+        )
+    }
+
+    test("Test rate limiting handler suppresses bursts and summarizes them") {
+
+        val second = 1_000_000_000L
+        var now = 0L
+        val printed = mutableListOf<String>()
+        val handler = RateLimitingMessageHandler({ printed += it.simpleMessage }, 1.0, 2, 10 * second, LongSupplier { now })
+
+        for (i in 1..5) {
+            handler.accept(message("Error at line $i", systemId = "a.xml"))
+        }
+        handler.accept(message("Another error", systemId = "b.xml"))
+
+        printed shouldBe listOf("Error at line 1", "Error at line 2", "Another error")
+
+        now = second
+        handler.accept(message("Error at line 6", systemId = "a.xml"))
+        printed.last() shouldBe "Error at line 6"
+
+        // the summary interval has elapsed
+        now = 11 * second
+        handler.accept(message("Error at line 7", systemId = "a.xml"))
+        printed.drop(4) shouldBe listOf("Error at line 7", "Suppressed 3 messages like: Error at line #")
+
+        handler.close()
+        printed shouldHaveSize 6
+    }
+
+    test("Test rate limiting handler with a large clock") {
+
+        val second = 1_000_000_000L
+        var now = Long.MAX_VALUE / 2
+        val printed = mutableListOf<String>()
+        val handler = RateLimitingMessageHandler({ printed += it.simpleMessage }, 100.0, 10, 10 * second, LongSupplier { now })
+
+        for (i in 1..5) {
+            handler.accept(message("Error at line $i", systemId = "a.xml"))
+        }
+        handler.close()
+
+        printed shouldHaveSize 5
+    }
+
+    test("Test rate limiting handler only takes a token when the message is forwarded") {
+
+        val second = 1_000_000_000L
+        var now = 0L
+        val printed = mutableListOf<String>()
+        val handler = RateLimitingMessageHandler({ printed += it.simpleMessage }, 1.0, 1, 10 * second, LongSupplier { now })
+
+        handler.accept(message("First", systemId = "a.xml"))
+        // rejected by the bucket of a.xml
+        handler.accept(message("Second", systemId = "a.xml"))
+        handler.accept(message("Second", systemId = "b.xml"))
+
+        printed shouldBe listOf("First", "Second")
+        handler.getNumBuckets() shouldBe 4
+
+        // all buckets are full again, they are removed
+        now = 20 * second
+        handler.close()
+        printed.last() shouldBe "Suppressed 1 message from this document"
+        handler.close()
+        handler.getNumBuckets() shouldBe 0
+    }
+
+    test("Test metrics handler") {
+
+        var now = 0L
+        val forwarded = mutableListOf<String>()
+        val metrics = MetricsMessageHandler({ forwarded += it.simpleMessage }, LongSupplier { now })
+
+        metrics.accept(message("cvc-complex-type.2.4.a: Invalid content was found", XmlSeverity.WARNING))
+        metrics.parseStarted()
+        now = 50_000
+        metrics.accept(message("cvc-complex-type.2.4.a: Invalid content was found"))
+        now = 2_000_000
+        metrics.accept(message("The element type \"a\" must be terminated by the matching end-tag \"</a>\"."))
+        metrics.parseEnded()
+
+        val snapshot = metrics.snapshot()
+        metrics.accept(message("schema_reference.4: Failed to read schema document"))
+
+        forwarded shouldHaveSize 4
+        snapshot.totalCount shouldBe 3
+        snapshot.getCount(XmlSeverity.ERROR) shouldBe 2
+        snapshot.getCount(XmlSeverity.WARNING) shouldBe 1
+        snapshot.countsByCode shouldBe mapOf("cvc-complex-type.2.4.a" to 2L)
+        snapshot.latencyCounts.toList() shouldBe listOf(1L, 0L, 1L, 0L, 0L, 0L, 0L)
+        snapshot.latencySumNanos shouldBe 2_050_000
+        metrics.snapshot().countsByCode["schema_reference.4"] shouldBe 1L
+    }
+
+})
@@ -24,7 +24,13 @@
 
 package com.github.oowekyala.ooxml.messages
 
+import io.kotest.assertions.throwables.shouldThrow
 import io.kotest.core.spec.style.FunSpec
+import io.kotest.matchers.collections.shouldHaveSize
+import io.kotest.matchers.ints.shouldBeGreaterThan
+import io.kotest.matchers.shouldBe
+import io.kotest.matchers.string.shouldContain
+import io.kotest.matchers.string.shouldNotContain
 import io.kotest.matchers.string.shouldStartWith
 import org.xml.sax.InputSource
 import javax.xml.parsers.DocumentBuilder
@@ -50,8 +56,8 @@ class SchemaValidatedXmlTest : FunSpec({
                 setFeature("http://apache.org/xml/features/validation/schema", true)
             }.newDocumentBuilder()
 
-    fun String.parseStr(handler: TestMessagePrinter): PositionedXmlDoc =
-        OoxmlFacade().withPrinter(handler).parse(domBuilder(), InputSource(reader()))
+    fun String.parseStr(handler: TestMessagePrinter, ooxml: OoxmlFacade = OoxmlFacade()): PositionedXmlDoc =
+        ooxml.withPrinter(handler).parse(domBuilder(), InputSource(reader()))
 
 
     test("Test wrong schema") {
@@ -79,4 +85,158 @@ Error (Schema validation)
 
     }
 
+
+    val manyErrors = """
+$HEADER
+<note xmlns="$schemaNs" xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance" xsi:schemaLocation="$schemaNs $schemaLoc"
+      a="1" b="2" c="3" d="4">
+    <to xmlns="">a</to>
+    <from xmlns="">b</from>
+    <heading xmlns="">c</heading>
+    <body xmlns="">d</body>
+</note>
+        """.trimIndent()
+
+    test("Test error budget per kind") {
+
+        val printer = TestMessagePrinter()
+
+        manyErrors.parseStr(printer, OoxmlFacade().withErrorBudget(10, 2))
+
+        printer.err shouldHaveSize 2
+    }
+
+    test("Test error budget exhausted") {
+
+        val printer = TestMessagePrinter()
+
+        val ex = shouldThrow<XmlException> {
+            manyErrors.parseStr(printer, OoxmlFacade().withErrorBudget(2, 1))
+        }
+
+        ex.simpleMessage shouldContain "Parsing aborted after 3 errors, 2 of which were not reported."
+        ex.kind shouldBe "Schema validation"
+        printer.err shouldHaveSize 2
+        printer.err.last() shouldBe ex
+    }
+
+    test("Test stackless diagnostics") {
+
+        val printer = TestMessagePrinter()
+
+        val ex = shouldThrow<XmlException> {
+            manyErrors.parseStr(printer, OoxmlFacade().withStacklessDiagnostics(true).withErrorBudget(2, 10))
+        }
+
+        printer.err shouldHaveSize 3
+        printer.err.take(2).forEach { it.stackTrace shouldHaveSize 0 }
+        ex.stackTrace.size shouldBeGreaterThan 0
+    }
+
+    test("Test grouped snippets") {
+
+        val printer = TestMessagePrinter()
+        val grouping = GroupingMessageHandler(printer)
+
+        OoxmlFacade().withPrinter(grouping).parse(domBuilder(), InputSource(manyErrors.reader()))
+        printer.shouldBeEmpty()
+
+        grouping.close()
+
+        val caret = "                                  ^ cvc-complex-type.3.2.2:"
+        printer.err.single().message shouldBe """
+Error (Schema validation) (+3 more)
+ 1| $HEADER
+ 2| <note xmlns="$schemaNs" xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance" xsi:schemaLocation="$schemaNs $schemaLoc"
+ 3|       a="1" b="2" c="3" d="4">
+$caret Attribute 'a' is not allowed to appear in element 'note'.
+$caret Attribute 'b' is not allowed to appear in element 'note'.
+$caret Attribute 'c' is not allowed to appear in element 'note'.
+$caret Attribute 'd' is not allowed to appear in element 'note'.
+
+ 4|     <to xmlns="">a</to>
+ 5|     <from xmlns="">b</from>
+        """.trimIndent()
+    }
+
+    test("Test grouped snippets by system id") {
+
+        val printer = TestMessagePrinter()
+        val grouping = GroupingMessageHandler(printer)
+
+        // messages that were already formatted have no positioner
+        fun formatted(position: XmlPosition, message: String): XmlException {
+            val spec = NiceXmlMessageSpec(position, message).withSeverity(XmlSeverity.ERROR)
+            return XmlException(spec, MessageUtil.headerOnly(spec, message, true))
+        }
+
+        // the parser expands the system id
+        val systemId = "file:///note.xml"
+        grouping.accept(formatted(XmlPosition.UNDEFINED, "No document"))
+        grouping.accept(formatted(XmlPosition.undefinedIn(systemId), "Whole document"))
+        grouping.accept(formatted(XmlPosition(systemId, 3, 8), "Reported"))
+
+        val input = InputSource(manyErrors.reader()).apply { this.systemId = "/note.xml" }
+        OoxmlFacade().withPrinter(grouping).parse(domBuilder(), input)
+        grouping.close()
+
+        printer.err.map { it.simpleMessage } shouldBe listOf("No document", "Reported", "Whole document")
+        val caret = "                                  ^ cvc-complex-type.3.2.2:"
+        printer.err[1].message shouldBe """
+Error at $systemId:3:8 (+4 more)
+ 1| $HEADER
+ 2| <note xmlns="$schemaNs" xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance" xsi:schemaLocation="$schemaNs $schemaLoc"
+ 3|       a="1" b="2" c="3" d="4">
+           ^ Reported
+$caret Attribute 'a' is not allowed to appear in element 'note'.
+$caret Attribute 'b' is not allowed to appear in element 'note'.
+$caret Attribute 'c' is not allowed to appear in element 'note'.
+$caret Attribute 'd' is not allowed to appear in element 'note'.
+
+ 4|     <to xmlns="">a</to>
+ 5|     <from xmlns="">b</from>
+        """.trimIndent()
+    }
+
+    test("Test grouped snippets of documents with the same system id") {
+
+        val printer = TestMessagePrinter()
+        val grouping = GroupingMessageHandler(printer)
+
+        // eg the same file, parsed before and after it was edited
+        for (text in listOf(manyErrors, manyErrors.replaceFirst("\n", "\n<!-- edited -->\n"))) {
+            val input = InputSource(text.reader()).apply { systemId = "/note.xml" }
+            OoxmlFacade().withPrinter(grouping).parse(domBuilder(), input)
+        }
+        grouping.close()
+
+        val (before, after) = printer.err
+        before.message shouldNotContain "edited"
+        after.message shouldContain " 2| <!-- edited -->"
+        // merged messages keep the originals
+        val merged = before.suppressed.map { it as XmlException }
+        merged.map { it.kind } shouldBe List(4) { "Schema validation" }
+        merged.map { it.position.line }.distinct() shouldBe listOf(3)
+        after.suppressed.map { (it as XmlException).position.line }.distinct() shouldBe listOf(4)
+    }
+
+    test("Test disabled messages are not created") {
+
+        val printer = object : XmlMessageHandler {
+            var numAccepted = 0
+
+            override fun accept(entry: XmlException) {
+                numAccepted++
+            }
+
+            override fun isEnabled(severity: XmlSeverity, kind: String?): Boolean =
+                kind != "Schema validation"
+        }
+
+        val doc = OoxmlFacade().withPrinter(printer).parse(domBuilder(), InputSource(manyErrors.reader()))
+
+        printer.numAccepted shouldBe 0
+        doc.document.documentElement.tagName shouldBe "note"
+    }
+
 })
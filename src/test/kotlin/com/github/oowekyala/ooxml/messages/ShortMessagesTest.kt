@@ -24,6 +24,7 @@
 
 package com.github.oowekyala.ooxml.messages
 
+import io.kotest.assertions.throwables.shouldThrow
 import io.kotest.core.spec.style.FunSpec
 import io.kotest.matchers.shouldBe
 
@@ -96,5 +97,49 @@ $HEADER
         }
     }
 
+    test("Test compiled template") {
+
+        val expected = """
+$HEADER
+<list>
+    <list foo="&amp;"/>
+</list>
+        """.trimIndent()
+
+        with(OoxmlFixture()) {
+            ooxml.withFormatter(NiceXmlMessageFormatter.compile("{systemId}:{line}:{column}: {severity}{kind} {{{message}}}\n{snippet}"))
+
+            val xmlDoc = expected.parseStr()
+
+            val reporter = newReporter(xmlDoc.positioner)
+
+            val attr =
+                xmlDoc.document
+                    .documentElement
+                    .childNodes
+                    .item(1)
+                    .attributes
+                    .getNamedItem("foo")
+
+            reporter.at(attr).error("Give better names plz")
+
+            printer.err[0].message shouldBe """
+/test/File.xml:3:11: Error {Give better names plz}
+ 1| <?xml version="1.0" encoding="UTF-8" standalone="no"?>
+ 2| <list>
+ 3|     <list foo="&amp;"/>
+              ^^^ Give better names plz
+
+ 4| </list>
+            """.trimIndent()
+        }
+    }
+
+    test("Test invalid templates") {
+
+        shouldThrow<IllegalArgumentException> { NiceXmlMessageFormatter.compile("{message") }
+        shouldThrow<IllegalArgumentException> { NiceXmlMessageFormatter.compile("{foo}") }
+    }
+
 })
 
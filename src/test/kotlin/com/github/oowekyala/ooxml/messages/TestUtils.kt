@@ -29,8 +29,8 @@ import io.kotest.matchers.collections.shouldBeEmpty
 import org.junit.jupiter.api.TestFactory
 import org.junit.jupiter.api.condition.EnabledIfSystemProperty
 import org.junit.jupiter.api.fail
+import org.w3c.dom.Node
 import org.xml.sax.InputSource
-import java.text.MessageFormat
 import java.util.function.Consumer
 import javax.xml.parsers.DocumentBuilderFactory
 
@@ -67,22 +67,24 @@ class OoxmlFixture(val ooxml: OoxmlFacade = OoxmlFacade()) {
 
 class SimpleMessageFacade(
     val ooxml: OoxmlFacade,
-    val pos: XmlPosition,
+    val reporter: TestXmlReporter,
+    val node: Node?,
     val positioner: XmlPositioner,
     val callback: (XmlException) -> Unit
 ) {
 
 
     fun warn(message: String, vararg args: Any?) {
-        message(WARNING, message, args)
+        message(WARNING, message, *args)
     }
 
     fun error(message: String, vararg args: Any?) {
-        message(ERROR, message, args)
+        message(ERROR, message, *args)
     }
 
     fun message(severity: XmlSeverity, message: String, vararg args: Any?) {
-        val spec = NiceXmlMessageSpec(pos, MessageFormat.format(message, args))
+        if (!reporter.isEnabled(severity)) return
+        val spec = NiceXmlMessageSpec(positioner.startPositionOf(node), reporter.format(message, *args))
         spec.withSeverity(severity)
         spec.withKind(null)
         val fullMessage = ooxml.formatter.formatSpec(ooxml, spec, positioner)
@@ -118,12 +120,14 @@ class TestXmlReporter(
 ) : XmlMessageReporterBase<SimpleMessageFacade>(ooxml, positioner) {
 
     override fun create2ndStage(
-        position: XmlPosition,
+        node: Node?,
         positioner: XmlPositioner
     ): SimpleMessageFacade {
-        return SimpleMessageFacade(ooxml, position, positioner) { handleEx(it) }
+        return SimpleMessageFacade(ooxml, this, node, positioner) { handleEx(it) }
     }
 
+    fun format(message: String, vararg args: Any?): String = formatMessage(message, *args)
+
 }
 
 interface IntelliMarker {
@@ -24,10 +24,15 @@
 
 package com.github.oowekyala.ooxml.messages
 
+import io.kotest.assertions.throwables.shouldThrow
 import io.kotest.core.spec.style.FunSpec
 import io.kotest.matchers.shouldBe
 import io.kotest.matchers.types.shouldBeInstanceOf
+import io.kotest.matchers.types.shouldBeSameInstanceAs
+import com.github.oowekyala.ooxml.messages.PositioningStrategy.*
 import org.w3c.dom.Element
+import org.w3c.dom.Node
+import javax.xml.parsers.DocumentBuilderFactory
 
 
 class UserValidationTest : IntelliMarker, FunSpec({
@@ -338,4 +343,383 @@ Error at /test/File.xml:7:5
     }
 
 
+    test("Test positions survive clone, import and adopt") {
+
+        val code = """
+$HEADER
+<list>
+    <item name="a"/>
+    <item name="b"/>
+</list>
+        """.trimIndent()
+
+        with(OoxmlFixture()) {
+            val xmlDoc = code.parseStr()
+            val positioner = xmlDoc.positioner
+            val second = xmlDoc.document.documentElement.getElementsByTagName("item").item(1) as Element
+
+            val expected = positioner.startPositionOf(second)
+            expected.line shouldBe 4
+
+            val clone = second.cloneNode(true)
+            positioner.startPositionOf(clone) shouldBe expected
+
+            val derived = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument()
+            val imported = derived.importNode(second, true) as Element
+            derived.appendChild(imported)
+            positioner.startPositionOf(imported) shouldBe expected
+            positioner.startPositionOf(imported.getAttributeNode("name")).column shouldBe 11
+
+            val adopted = derived.adoptNode(xmlDoc.document.documentElement)
+            derived.replaceChild(adopted, imported)
+            positioner.startPositionOf(adopted).line shouldBe 2
+        }
+    }
+
+
+    test("Test frozen positioner") {
+
+        val code = """
+$HEADER
+<list xmlns:foo="ah!">
+    text
+    <!-- comment -->
+    <foo:item name="a" other='b'>
+        <![CDATA[ cdata ]]>
+    </foo:item>
+    <item name="b"/>
+</list>
+        """.trimIndent()
+
+        fun Node.allNodes(): List<Node> =
+            listOf(this) +
+                    (0 until (attributes?.length ?: 0)).map { attributes.item(it) } +
+                    (0 until childNodes.length).flatMap { childNodes.item(it).allNodes() }
+
+        with(OoxmlFixture()) {
+            val xmlDoc = code.parseStr()
+            val nodes = xmlDoc.document.allNodes()
+            val expected = nodes.map { xmlDoc.positioner.startPositionOf(it) }
+
+            val frozen = xmlDoc.freeze()
+            frozen.document shouldBeSameInstanceAs xmlDoc.document
+            nodes.forEach { it.getUserData("ooxml:startOffset") shouldBe null }
+
+            nodes.map { frozen.positioner.startPositionOf(it) } shouldBe expected
+            // out of order lookups
+            nodes.reversed().map { frozen.positioner.startPositionOf(it) } shouldBe expected.reversed()
+
+            val item = xmlDoc.document.getElementsByTagName("item").item(0)
+            newReporter(frozen.positioner).at(item).error("Give better names plz")
+            newReporter(xmlDoc.positioner).at(item).error("Give better names plz")
+
+            printer.err[0].message shouldBe printer.err[1].message
+        }
+    }
+
+
+    test("Test positioning strategies") {
+
+        val code = """
+$HEADER
+<list>
+    <item name="a"/>
+</list>
+        """.trimIndent()
+
+        fun strategy(indexing: IndexingMode, retention: TextRetention) = object : PositioningStrategy {
+            override fun indexingMode(contentLength: Int, density: ReportDensity) = indexing
+            override fun textRetention(contentLength: Int, density: ReportDensity) = retention
+        }
+
+        val expected = with(OoxmlFixture()) {
+            val doc = code.parseStr()
+            doc.positioner.startPositionOf(doc.document.getElementsByTagName("item").item(0))
+        }
+
+        for (indexing in IndexingMode.values()) {
+            for (retention in listOf(TextRetention.FULL, TextRetention.FROZEN)) {
+                with(OoxmlFixture(OoxmlFacade().withPositioningStrategy(strategy(indexing, retention)))) {
+                    val doc = code.parseStr()
+                    doc.positioner.startPositionOf(doc.document.getElementsByTagName("item").item(0)) shouldBe expected
+                }
+            }
+        }
+
+        with(OoxmlFixture(OoxmlFacade().withPositioningStrategy(strategy(IndexingMode.EAGER, TextRetention.NONE)))) {
+            val doc = code.parseStr()
+            val pos = doc.positioner.startPositionOf(doc.document.documentElement)
+            pos.isUndefined shouldBe true
+            pos.systemId shouldBe "/test/File.xml"
+        }
+    }
+
+
+    test("Test background indexing") {
+
+        val code = """
+$HEADER
+<list>
+    <item name="a"/>
+</list>
+        """.trimIndent()
+
+        val tasks = mutableListOf<Runnable>()
+
+        with(OoxmlFixture(OoxmlFacade().withIndexingExecutor { tasks += it })) {
+            val doc = code.parseStr()
+            // line index and start tags
+            tasks.size shouldBe 2
+
+            tasks.forEach { it.run() }
+            val pos = doc.positioner.startPositionOf(doc.document.getElementsByTagName("item").item(0))
+            pos.line shouldBe 3
+            pos.column shouldBe 5
+        }
+    }
+
+    test("Test background indexing runs on the caller if the executor does not") {
+
+        val code = """
+$HEADER
+<!-- <fake> -->
+<list a=">">
+    <![CDATA[ <fake/> ]]>
+    <item name="a"/>&amp;<item/>
+</list>
+        """.trimIndent()
+
+        val tasks = mutableListOf<Runnable>()
+
+        with(OoxmlFixture(OoxmlFacade().withIndexingExecutor { tasks += it })) {
+            val doc = code.parseStr()
+
+            // the tasks never run
+            val items = doc.document.getElementsByTagName("item")
+            doc.positioner.startPositionOf(items.item(0)).column shouldBe 5
+            doc.positioner.startPositionOf(items.item(1)).column shouldBe 26
+            doc.positioner.startPositionOf(doc.document.documentElement).line shouldBe 3
+
+            // running them later does nothing
+            tasks.forEach { it.run() }
+            NewOffsetScanner.scanStartTags(code)!!.size shouldBe 3
+        }
+    }
+
+    test("Test start tags are not scanned when entities may expand to elements") {
+
+        NewOffsetScanner.scanStartTags("<a>&ent;</a>") shouldBe null
+        NewOffsetScanner.scanStartTags("<!DOCTYPE a [<!ENTITY e '<b/>'>]><a/>") shouldBe null
+        NewOffsetScanner.scanStartTags("<a x='>'>&#60;&lt;<b/></a>")!!.toList() shouldBe listOf(0, 18)
+    }
+
+
+    test("Test context lines are reused for messages on the same line") {
+
+        val expected = """
+$HEADER
+<list>
+    <list foo="&amp;" bar="b"/>
+</list>
+        """.trimIndent()
+
+        with(OoxmlFixture()) {
+
+            val xmlDoc = expected.parseStr()
+
+            val reporter = newReporter(xmlDoc.positioner)
+
+            val list = xmlDoc.document.documentElement.childNodes.item(1)
+
+            reporter.at(list.attributes.getNamedItem("foo")).error("Give better names plz")
+            reporter.at(list.attributes.getNamedItem("bar")).warn("Me too")
+
+            val pos = xmlDoc.positioner.startPositionOf(list)
+            xmlDoc.positioner.getLinesAround(pos, 3) shouldBeSameInstanceAs xmlDoc.positioner.getLinesAround(pos, 3)
+
+            printer.err[0].message shouldBe """
+Error at /test/File.xml:3:11
+ 1| $HEADER
+ 2| <list>
+ 3|     <list foo="&amp;" bar="b"/>
+              ^^^ Give better names plz
+
+ 4| </list>
+""".trimIndent()
+
+            printer.warn[0].message shouldBe """
+Warning at /test/File.xml:3:23
+ 1| $HEADER
+ 2| <list>
+ 3|     <list foo="&amp;" bar="b"/>
+                          ^^^ Me too
+
+ 4| </list>
+""".trimIndent()
+        }
+    }
+
+    test("Test long lines are cut around the column") {
+
+        val expected = "<list>" + "<a/>".repeat(20) + "<b foo=\"&amp;\"/>" + "<a/>".repeat(20) + "</list>"
+
+        with(OoxmlFixture(OoxmlFacade().withMaxLineWidth(20))) {
+
+            val xmlDoc = expected.parseStr()
+
+            val reporter = newReporter(xmlDoc.positioner)
+
+            val attr =
+                xmlDoc.document
+                    .documentElement
+                    .childNodes
+                    .item(20)
+                    .attributes
+                    .getNamedItem("foo")
+
+            reporter.at(attr).error("Give better names plz")
+
+            printer.err[0].message shouldBe """
+Error at /test/File.xml:1:90
+ 1| ...a/><a/><b foo="&amp;...
+                 ^^^ Give better names plz
+""".trimStart()
+        }
+    }
+
+    test("Test lazy messages keep the settings of their creation") {
+
+        with(OoxmlFixture(OoxmlFacade().withContextLines(1))) {
+
+            val xmlDoc = "<list>\n<a/>\n</list>".parseStr()
+            val a = xmlDoc.document.documentElement.firstChild.nextSibling
+            val spec = NiceXmlMessageSpec(xmlDoc.positioner.startPositionOf(a), "Oops").withSeverity(XmlSeverity.ERROR)
+
+            val entry = XmlException(spec, ooxml, xmlDoc.positioner)
+            ooxml.withContextLines(3).withFormatter(NiceXmlMessageFormatter.SINGLE_LINE)
+
+            entry.positioner shouldBeSameInstanceAs xmlDoc.positioner
+            entry.message shouldBe """
+Error at /test/File.xml:2:1
+ 2| <a/>
+    ^^ Oops
+""".trimStart()
+            // formatted, the positioner is released
+            entry.positioner shouldBe null
+        }
+    }
+
+    test("Test reporters that override the position-based hook") {
+
+        with(OoxmlFixture()) {
+
+            val xmlDoc = "<list><a/><b/></list>".parseStr()
+
+            val reporter = object : XmlMessageReporterBase<XmlPosition>(ooxml, xmlDoc.positioner) {
+                @Suppress("OverridingDeprecatedMember")
+                override fun create2ndStage(position: XmlPosition, positioner: XmlPositioner): XmlPosition = position
+            }
+            reporter.at(xmlDoc.document.documentElement.childNodes.item(1)).column shouldBe 11
+
+            shouldThrow<IllegalStateException> {
+                object : XmlMessageReporterBase<XmlPosition>(ooxml, xmlDoc.positioner) {}
+            }
+        }
+    }
+
+    test("Test positions are resolved only when a message is reported") {
+
+        with(OoxmlFixture()) {
+
+            val xmlDoc = "<list><a/><b/></list>".parseStr()
+
+            var numLookups = 0
+            val counting = object : XmlPositioner by xmlDoc.positioner {
+                override fun startPositionOf(node: Node?): XmlPosition {
+                    numLookups++
+                    return xmlDoc.positioner.startPositionOf(node)
+                }
+            }
+
+            val reporter = newReporter(counting)
+            val children = xmlDoc.document.documentElement.childNodes
+
+            reporter.at(children.item(0))
+            reporter.at(children.item(1))
+            numLookups shouldBe 0
+
+            reporter.at(children.item(1)).error("Oops")
+            numLookups shouldBe 1
+            printer.err[0].position.column shouldBe 11
+        }
+    }
+
+    test("Test reporter formats arguments and skips disabled severities") {
+
+        val printer = object : XmlMessageHandler {
+            val accepted = mutableListOf<XmlException>()
+
+            override fun accept(entry: XmlException) {
+                accepted += entry
+            }
+
+            override fun isEnabled(severity: XmlSeverity, kind: String?): Boolean =
+                severity == XmlSeverity.ERROR
+        }
+
+        with(OoxmlFixture()) {
+
+            val xmlDoc = "<list><a/></list>".parseStr()
+            // replace the printer of the fixture
+            ooxml.withPrinter(printer)
+
+            val reporter = newReporter(xmlDoc.positioner)
+            val a = xmlDoc.document.documentElement.firstChild
+
+            reporter.isEnabled(XmlSeverity.WARNING) shouldBe false
+            reporter.at(a).warn("Unexpected element {0}", a.nodeName)
+            reporter.at(a).error("Unexpected element {0}", a.nodeName)
+            reporter.at(a).error("Unexpected element {0}", "b")
+
+            printer.accepted.map { it.simpleMessage } shouldBe listOf("Unexpected element a", "Unexpected element b")
+        }
+    }
+
+    test("Test positions of a document share its system id") {
+
+        XmlPosition.undefinedIn(null) shouldBeSameInstanceAs XmlPosition.UNDEFINED
+
+        with(OoxmlFixture()) {
+            val xmlDoc = "<list><a/></list>".parseStr()
+            val positioner = xmlDoc.positioner
+            val list = xmlDoc.document.documentElement
+
+            positioner.startPositionOf(null) shouldBeSameInstanceAs positioner.startPositionOf(null)
+            positioner.startPositionOf(list).systemId shouldBeSameInstanceAs positioner.startPositionOf(null).systemId
+            positioner.startPositionOf(list.firstChild).systemId shouldBeSameInstanceAs positioner.startPositionOf(list).systemId
+        }
+    }
+
+    test("Test positions carry character offsets") {
+
+        val text = "<list>\n    <item foo='bar'/>\n</list>"
+
+        with(OoxmlFixture()) {
+            val xmlDoc = text.parseStr()
+            val item = xmlDoc.document.documentElement.getElementsByTagName("item").item(0) as Element
+            val attr = item.getAttributeNode("foo")
+
+            for (doc in listOf(xmlDoc, xmlDoc.freeze())) {
+                val itemPos = doc.positioner.startPositionOf(item)
+                itemPos.startOffset shouldBe text.indexOf("<item")
+
+                val attrPos = doc.positioner.startPositionOf(attr)
+                text.substring(attrPos.startOffset, attrPos.endOffset) shouldBe "foo"
+            }
+
+            XmlPosition.UNDEFINED.startOffset shouldBe -1
+            XmlPosition.UNDEFINED.endOffset shouldBe -1
+        }
+    }
+
 })
@@ -0,0 +1,178 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2022 Clément Fournier
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package com.github.oowekyala.ooxml.messages
+
+import io.kotest.assertions.throwables.shouldThrow
+import io.kotest.core.spec.style.FunSpec
+import io.kotest.matchers.shouldBe
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Flow
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+/*
+   Only compiled and run on Java 9+, see the java9 profile in pom.xml
+ */
+
+/** Records the signals it receives, requests [initialRequest] on subscription. */
+class RecordingSubscriber(private val initialRequest: Long) : Flow.Subscriber<XmlException> {
+    val signals: MutableList<String> = Collections.synchronizedList(mutableListOf())
+    val done = CountDownLatch(1)
+    lateinit var subscription: Flow.Subscription
+    var onNextAction: (XmlException) -> Unit = {}
+
+    override fun onSubscribe(subscription: Flow.Subscription) {
+        this.subscription = subscription
+        if (initialRequest > 0) subscription.request(initialRequest)
+    }
+
+    override fun onNext(item: XmlException) {
+        signals += item.simpleMessage
+        onNextAction(item)
+    }
+
+    override fun onError(throwable: Throwable) {
+        signals += "error: " + throwable.message
+        done.countDown()
+    }
+
+    override fun onComplete() {
+        signals += "complete"
+        done.countDown()
+    }
+}
+
+class PublishingMessageHandlerTest : FunSpec({
+
+    test("Test publisher honours demand and blocks the producer") {
+
+        val publisher = PublishingMessageHandler(2)
+        val subscriber = RecordingSubscriber(1)
+        publisher.subscribe(subscriber)
+
+        val producer = thread {
+            for (i in 0 until 10) {
+                publisher.accept(message("m$i"))
+            }
+            publisher.close()
+        }
+
+        // one message was requested, two are buffered, the producer waits
+        producer.join(300)
+        producer.isAlive shouldBe true
+        subscriber.signals shouldBe listOf("m0")
+
+        subscriber.subscription.request(Long.MAX_VALUE)
+        producer.join()
+        subscriber.done.await(5, TimeUnit.SECONDS) shouldBe true
+        subscriber.signals shouldBe (0 until 10).map { "m$it" } + "complete"
+    }
+
+    test("Test publisher buffers messages before subscription") {
+
+        val publisher = PublishingMessageHandler(2)
+        for (i in 0 until 5) {
+            publisher.accept(message("m$i"))
+        }
+        publisher.close()
+
+        val subscriber = RecordingSubscriber(Long.MAX_VALUE)
+        publisher.subscribe(subscriber)
+
+        subscriber.signals shouldBe (0 until 5).map { "m$it" } + "complete"
+    }
+
+    test("Test publisher accepts messages from onNext without blocking") {
+
+        val publisher = PublishingMessageHandler(1)
+        val subscriber = RecordingSubscriber(1)
+        subscriber.onNextAction = {
+            if (it.simpleMessage == "m0") {
+                publisher.accept(message("from onNext 1"))
+                publisher.accept(message("from onNext 2"))
+            }
+        }
+        publisher.subscribe(subscriber)
+
+        publisher.accept(message("m0"))
+        subscriber.subscription.request(2)
+
+        subscriber.signals shouldBe listOf("m0", "from onNext 1", "from onNext 2")
+    }
+
+    test("Test publisher cancel releases the producer") {
+
+        val publisher = PublishingMessageHandler(1)
+        val subscriber = RecordingSubscriber(1)
+        subscriber.onNextAction = { subscriber.subscription.cancel() }
+        publisher.subscribe(subscriber)
+
+        val producer = thread {
+            for (i in 0 until 10) {
+                publisher.accept(message("m$i"))
+            }
+        }
+        producer.join(5000)
+
+        producer.isAlive shouldBe false
+        subscriber.signals shouldBe listOf("m0")
+        publisher.isEnabled(XmlSeverity.ERROR, null) shouldBe false
+    }
+
+    test("Test publisher cancels a subscriber whose onNext throws") {
+
+        val publisher = PublishingMessageHandler(1)
+        val subscriber = RecordingSubscriber(1)
+        subscriber.onNextAction = { throw IllegalStateException("oops") }
+        publisher.subscribe(subscriber)
+
+        shouldThrow<IllegalStateException> { publisher.accept(message("m0")) }.message shouldBe "oops"
+
+        // the subscription is cancelled, later messages neither block nor get delivered
+        val producer = thread {
+            for (i in 1 until 10) {
+                publisher.accept(message("m$i"))
+            }
+            publisher.close()
+        }
+        producer.join(5000)
+
+        producer.isAlive shouldBe false
+        subscriber.signals shouldBe listOf("m0")
+        publisher.isEnabled(XmlSeverity.ERROR, null) shouldBe false
+    }
+
+    test("Test publisher supports a single subscriber") {
+
+        val publisher = PublishingMessageHandler()
+        publisher.subscribe(RecordingSubscriber(1))
+
+        val second = RecordingSubscriber(1)
+        publisher.subscribe(second)
+
+        second.signals shouldBe listOf("error: This publisher supports a single subscriber")
+    }
+
+})